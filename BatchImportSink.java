@@ -0,0 +1,104 @@
+package io.sustc.service.impl;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+
+/**
+ * {@link ImportSink} on top of PreparedStatement addBatch / executeBatch.
+ */
+class BatchImportSink extends ImportSink {
+
+    private final PreparedStatement insertStmt;
+    private int column;
+    private long bufferedBytes;
+
+    BatchImportSink(Connection conn, String table, String columns, ImportOptions options) throws SQLException {
+        super(conn, table, columns, options);
+        int count = columns.split(",").length;
+        StringBuilder sql = new StringBuilder("INSERT INTO ").append(table)
+                .append(" (").append(columns).append(") VALUES (");
+        for (int i = 0; i < count; i++) {
+            sql.append(i == 0 ? "?" : ", ?");
+        }
+        this.insertStmt = conn.prepareStatement(sql.append(')').toString());
+    }
+
+    @Override
+    ImportSink int4(int value) throws SQLException {
+        insertStmt.setInt(++column, value);
+        bufferedBytes += 4;
+        return this;
+    }
+
+    @Override
+    ImportSink int8(long value) throws SQLException {
+        insertStmt.setLong(++column, value);
+        bufferedBytes += 8;
+        return this;
+    }
+
+    @Override
+    ImportSink float8(double value) throws SQLException {
+        insertStmt.setDouble(++column, value);
+        bufferedBytes += 8;
+        return this;
+    }
+
+    @Override
+    ImportSink text(String value) throws SQLException {
+        insertStmt.setString(++column, value);
+        // the driver keeps the String until the batch is sent
+        bufferedBytes += value == null ? 4 : 40 + 2L * value.length();
+        return this;
+    }
+
+    @Override
+    ImportSink timestamp(Timestamp value) throws SQLException {
+        if (value == null) {
+            insertStmt.setNull(++column, Types.TIMESTAMP);
+        } else {
+            insertStmt.setTimestamp(++column, value);
+        }
+        bufferedBytes += 40;
+        return this;
+    }
+
+    @Override
+    protected void rowEnded() throws SQLException {
+        insertStmt.addBatch();
+        column = 0;
+    }
+
+    @Override
+    protected long bufferedBytes() {
+        return bufferedBytes;
+    }
+
+    @Override
+    protected void sendChunk() throws SQLException {
+        insertStmt.executeBatch();
+        bufferedBytes = 0;
+    }
+
+    @Override
+    protected void completeStatement() throws SQLException {
+        sendChunk();
+    }
+
+    @Override
+    protected void reopen() {
+    }
+
+    @Override
+    protected void abort() throws SQLException {
+        insertStmt.clearBatch();
+    }
+
+    @Override
+    protected void release() throws SQLException {
+        insertStmt.close();
+    }
+}
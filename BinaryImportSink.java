@@ -0,0 +1,77 @@
+package io.sustc.service.impl;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+
+/**
+ * {@link ImportSink} that encodes rows into a local buffer in PostgreSQL's binary COPY
+ * format. Subclasses decide where the buffered bytes go.
+ */
+abstract class BinaryImportSink extends ImportSink {
+
+    protected final PgBinaryEncoder encoder;
+    private final int fieldCount;
+    private boolean rowStarted;
+
+    protected BinaryImportSink(Connection conn, String table, String columns, ImportOptions options,
+                               int initialCapacity) throws SQLException {
+        super(conn, table, columns, options);
+        this.fieldCount = columns.split(",").length;
+        this.encoder = new PgBinaryEncoder(initialCapacity);
+    }
+
+    protected BinaryImportSink(String table, String columns, ImportOptions options, int initialCapacity) {
+        super(table, columns, options);
+        this.fieldCount = columns.split(",").length;
+        this.encoder = new PgBinaryEncoder(initialCapacity);
+    }
+
+    @Override
+    ImportSink int4(int value) {
+        row().int4(value);
+        return this;
+    }
+
+    @Override
+    ImportSink int8(long value) {
+        row().int8(value);
+        return this;
+    }
+
+    @Override
+    ImportSink float8(double value) {
+        row().float8(value);
+        return this;
+    }
+
+    @Override
+    ImportSink text(String value) {
+        row().text(value);
+        return this;
+    }
+
+    @Override
+    ImportSink timestamp(Timestamp value) {
+        row().timestamp(value);
+        return this;
+    }
+
+    private PgBinaryEncoder row() {
+        if (!rowStarted) {
+            encoder.startRow(fieldCount);
+            rowStarted = true;
+        }
+        return encoder;
+    }
+
+    @Override
+    protected void rowEnded() {
+        rowStarted = false;
+    }
+
+    @Override
+    protected long bufferedBytes() {
+        return encoder.size();
+    }
+}
@@ -0,0 +1,65 @@
+package io.sustc.service.impl;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed-size Bloom filter over 64-bit keys, strings are hashed to a key first. Adding is
+ * thread-safe and lock-free, there is no removal: a deleted key stays a false positive until
+ * the filter is rebuilt.
+ */
+final class BloomFilter {
+
+    private final AtomicLongArray bits;
+    private final long bitCount;
+    private final int hashCount;
+
+    /**
+     * @param expectedKeys       number of keys the false positive rate is sized for
+     * @param falsePositiveRate  e.g. 0.01
+     */
+    BloomFilter(long expectedKeys, double falsePositiveRate) {
+        long n = Math.max(expectedKeys, 1);
+        long m = (long) Math.ceil(-n * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+        int words = (int) Math.min((m + 63) / 64, Integer.MAX_VALUE);
+        this.bits = new AtomicLongArray(words);
+        this.bitCount = (long) words * 64;
+        this.hashCount = Math.max(1, (int) Math.round((double) bitCount / n * Math.log(2)));
+    }
+
+    void add(long key) {
+        long h1 = Hashing.mix(key);
+        long h2 = Hashing.mix(h1) | 1;
+        for (int i = 0; i < hashCount; i++) {
+            long bit = Math.floorMod(h1 + i * h2, bitCount);
+            int word = (int) (bit >>> 6);
+            long mask = 1L << bit;
+            long current = bits.get(word);
+            while ((current & mask) == 0 && !bits.compareAndSet(word, current, current | mask)) {
+                current = bits.get(word);
+            }
+        }
+    }
+
+    void add(String key) {
+        add(Hashing.fnv1a(key));
+    }
+
+    /**
+     * @return {@code false} only if {@code key} was never added
+     */
+    boolean mightContain(long key) {
+        long h1 = Hashing.mix(key);
+        long h2 = Hashing.mix(h1) | 1;
+        for (int i = 0; i < hashCount; i++) {
+            long bit = Math.floorMod(h1 + i * h2, bitCount);
+            if ((bits.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    boolean mightContain(String key) {
+        return mightContain(Hashing.fnv1a(key));
+    }
+}
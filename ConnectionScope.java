@@ -0,0 +1,310 @@
+package io.sustc.service.impl;
+
+import lombok.extern.slf4j.Slf4j;
+import org.postgresql.PGConnection;
+import org.postgresql.core.BaseConnection;
+import org.postgresql.core.TransactionState;
+import org.springframework.stereotype.Component;
+
+import javax.sql.DataSource;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Hands out one pooled connection per service call. The outermost {@link #getConnection()}
+ * on a thread checks out a connection and starts a transaction, every nested call on the same
+ * thread gets that connection back, so helpers that open "their own" connection share the
+ * caller's. Closing the outermost handle commits and returns the connection to the pool,
+ * closing a nested one does nothing.
+ * <p>
+ * The transaction is committed however the call returns, unless a statement of the scope
+ * failed: PostgreSQL has aborted the transaction then and would turn the COMMIT into a silent
+ * ROLLBACK. Every SQLException thrown through a handle or its statements is recorded, helpers
+ * that swallow theirs included, and the driver's transaction state is checked as well. A failed
+ * scope is rolled back and closing the outermost handle throws, so the call reports failure
+ * instead of success for work that was lost.
+ * <p>
+ * Every statement prepared through a handle is registered with the {@link StatementRegistry}.
+ * Statement executions, commits and the wait for a pooled connection are reported to
+ * {@link ServiceMetrics}, executions over the slow query threshold to the {@link SlowQueryLog}.
+ * <p>
+ * Read-only calls open their scope with {@link #getReadConnection()}, which may be served by
+ * the replica {@link ReplicaRouter} picks. Such a scope stays in autocommit, a single query
+ * then costs a single round trip without BEGIN and COMMIT. Helpers inside it keep using
+ * getConnection() and join whichever scope is open, so caches filled by such helpers check
+ * {@link #isOnReplica()} and leave the replica's possibly stale rows out.
+ * <p>
+ * A rollback through a handle rolls back the scope's transaction when the call that opened the
+ * scope asks for it. A nested call's rollback marks the scope failed instead, see above.
+ * <p>
+ * Caches that must not see uncommitted work register an {@link #afterCommit} callback, it runs
+ * once the scope's transaction is committed.
+ */
+@Component
+@Slf4j
+public class ConnectionScope {
+
+    private final DataSource dataSource;
+
+    private final StatementRegistry statements;
+
+    private final ReplicaRouter replicas;
+
+    private final ServiceMetrics metrics;
+
+    private final SlowQueryLog slowQueries;
+
+    private final ThreadLocal<Scope> current = new ThreadLocal<>();
+
+    public ConnectionScope(DataSource dataSource, StatementRegistry statements, ReplicaRouter replicas,
+                           ServiceMetrics metrics, SlowQueryLog slowQueries) {
+        this.dataSource = dataSource;
+        this.statements = statements;
+        this.replicas = replicas;
+        this.metrics = metrics;
+        this.slowQueries = slowQueries;
+    }
+
+    private final class Scope {
+        final Connection connection;
+        final Connection handle;
+        // the driver connection behind the pool's wrapper, its statement cache outlives the checkout
+        final Object physical;
+        final boolean readOnly;
+        // served by the replica, its rows may lag behind the primary
+        final boolean replica;
+        final List<Runnable> afterCommit = new ArrayList<>();
+        int depth;
+        // the first statement that failed, the transaction is lost from there on
+        SQLException failure;
+
+        Scope(Connection connection, boolean readOnly, boolean replica) throws SQLException {
+            this.connection = connection;
+            this.readOnly = readOnly;
+            this.replica = replica;
+            this.physical = connection.isWrapperFor(PGConnection.class) ? connection.unwrap(PGConnection.class) : connection;
+            this.handle = (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+                    new Class<?>[]{Connection.class}, (proxy, method, args) -> {
+                        switch (method.getName()) {
+                            case "close":
+                                release(this);
+                                return null;
+                            case "isClosed":
+                                return depth == 0 || connection.isClosed();
+                            // the scope owns the transaction
+                            case "commit":
+                            case "setAutoCommit":
+                                return null;
+                            case "rollback":
+                                return rollback(this, method, args);
+                            case "prepareStatement":
+                                Object stmt = invoke(this, connection, method, args);
+                                statements.prepared(physical, (String) args[0], (PreparedStatement) stmt);
+                                return instrumented(this, method.getReturnType(), stmt, (String) args[0]);
+                            case "createStatement":
+                                return instrumented(this, method.getReturnType(), invoke(this, connection, method, args), null);
+                            default:
+                                return invoke(this, connection, method, args);
+                        }
+                    });
+        }
+    }
+
+    /**
+     * A rollback by the call that opened the scope rolls back its transaction, nothing of it is
+     * committed afterwards. Inside a nested call it would throw away the outer call's work, so
+     * the scope is marked failed instead and rolled back when the outermost handle closes.
+     */
+    private static Object rollback(Scope scope, Method method, Object[] args) throws Throwable {
+        // a savepoint only undoes what came after it
+        if (args != null && args.length > 0 || scope.depth == 1) {
+            Object result = invoke(scope, scope.connection, method, args);
+            if (args == null || args.length == 0) {
+                scope.afterCommit.clear();
+            }
+            return result;
+        }
+        if (scope.failure == null) {
+            scope.failure = new SQLException("A nested call rolled back the transaction");
+        }
+        return null;
+    }
+
+    private static Object invoke(Scope scope, Object target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof SQLException && scope.failure == null) {
+                scope.failure = (SQLException) cause;
+            }
+            throw cause;
+        }
+    }
+
+    /**
+     * Wraps a statement so that every execute* counts as a round trip and is timed, and the
+     * binds of a prepared statement are kept for the slow query log.
+     *
+     * @param sql the SQL of a prepared statement, {@code null} for a plain statement
+     */
+    private Object instrumented(Scope scope, Class<?> type, Object stmt, String sql) {
+        Map<Integer, SlowQueryLog.Bind> binds = new TreeMap<>();
+        return Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type}, (proxy, method, args) -> {
+            String name = method.getName();
+            if (name.startsWith("set") && args != null && args.length >= 2 && args[0] instanceof Integer) {
+                binds.put((Integer) args[0], new SlowQueryLog.Bind(method, args));
+            } else if (name.equals("clearParameters")) {
+                binds.clear();
+            } else if (name.startsWith("execute")) {
+                metrics.statementExecuted();
+                long start = System.nanoTime();
+                Object result = invoke(scope, stmt, method, args);
+                long elapsed = System.nanoTime() - start;
+                if (slowQueries.isSlow(elapsed)) {
+                    String text = sql != null ? sql : args != null && args.length > 0 ? (String) args[0] : "?";
+                    slowQueries.record(text, binds, metrics.currentMethod(), elapsed);
+                }
+                return result;
+            }
+            return invoke(scope, stmt, method, args);
+        });
+    }
+
+    /**
+     * @return the connection of the current call, opened if this is the outermost request.
+     * Close it like any other connection.
+     */
+    Connection getConnection() throws SQLException {
+        return open(dataSource, false);
+    }
+
+    /**
+     * Like {@link #getConnection()}, but a call that opens the scope here only reads, so it may
+     * run read-only on the replica. Inside an open scope the caller gets that scope's connection.
+     */
+    Connection getReadConnection() throws SQLException {
+        if (current.get() == null) {
+            DataSource replica = replicas.readSource();
+            if (replica != null) {
+                try {
+                    return open(replica, true);
+                } catch (SQLException e) {
+                    log.warn("Replica connection failed, reading from the primary: {}", e.getMessage());
+                }
+            }
+        }
+        return open(dataSource, true);
+    }
+
+    /**
+     * Like {@link #getReadConnection()}, but never served by the replica. For reads whose result
+     * is cached beyond the call, a lagging replica would put stale rows into the cache.
+     */
+    Connection getPrimaryReadConnection() throws SQLException {
+        return open(dataSource, true);
+    }
+
+    /**
+     * @return whether the scope open on this thread reads from the replica. A result read there
+     * must not be cached beyond the call.
+     */
+    boolean isOnReplica() {
+        Scope scope = current.get();
+        return scope != null && scope.replica;
+    }
+
+    /**
+     * Runs {@code action} once the transaction of the current scope is committed, right away
+     * when no scope is open. Nothing runs when the commit fails.
+     */
+    void afterCommit(Runnable action) {
+        Scope scope = current.get();
+        if (scope == null) {
+            action.run();
+        } else {
+            scope.afterCommit.add(action);
+        }
+    }
+
+    private Connection open(DataSource source, boolean readOnly) throws SQLException {
+        Scope scope = current.get();
+        if (scope == null) {
+            long waitStart = System.nanoTime();
+            Connection connection = source.getConnection();
+            metrics.connectionWait(System.nanoTime() - waitStart);
+            try {
+                connection.setAutoCommit(readOnly);
+                connection.setReadOnly(readOnly);
+                scope = new Scope(connection, readOnly, source != dataSource);
+            } catch (SQLException e) {
+                connection.close();
+                throw e;
+            }
+            current.set(scope);
+        }
+        scope.depth++;
+        return scope.handle;
+    }
+
+    /**
+     * @return an exception when the driver knows the transaction is aborted, which covers
+     * failures the handle never saw, such as a result set that failed while fetching
+     */
+    private static SQLException abortedByServer(Connection connection) throws SQLException {
+        if (connection.isWrapperFor(BaseConnection.class)
+                && connection.unwrap(BaseConnection.class).getTransactionState() == TransactionState.FAILED) {
+            return new SQLException("The transaction was aborted by an earlier error");
+        }
+        return null;
+    }
+
+    private void release(Scope scope) throws SQLException {
+        if (scope.depth == 0 || --scope.depth > 0) {
+            return;
+        }
+        current.remove();
+        Connection connection = scope.connection;
+        try {
+            if (!scope.readOnly) {
+                SQLException failure = scope.failure != null ? scope.failure : abortedByServer(connection);
+                if (failure != null) {
+                    throw new SQLException("Transaction rolled back after a failed statement", failure);
+                }
+                connection.commit();
+                metrics.statementExecuted();
+            }
+        } catch (SQLException e) {
+            try {
+                connection.rollback();
+            } catch (SQLException suppressed) {
+                e.addSuppressed(suppressed);
+            }
+            throw e;
+        } finally {
+            try {
+                connection.setReadOnly(false);
+                connection.setAutoCommit(true);
+            } catch (SQLException e) {
+                log.warn("Could not reset the connection before returning it", e);
+            }
+            connection.close();
+        }
+        for (Runnable action : scope.afterCommit) {
+            try {
+                action.run();
+            } catch (RuntimeException e) {
+                log.warn("After commit action failed", e);
+            }
+        }
+    }
+}
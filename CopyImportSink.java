@@ -0,0 +1,71 @@
+package io.sustc.service.impl;
+
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyIn;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.List;
+
+/**
+ * {@link ImportSink} that streams rows through {@code COPY ... FROM STDIN (FORMAT binary)}.
+ * Rows are encoded into a local buffer and handed to the driver chunk by chunk.
+ */
+class CopyImportSink extends BinaryImportSink {
+
+    private final PGConnection pgConn;
+    private CopyIn copyIn;
+
+    CopyImportSink(Connection conn, String table, String columns, ImportOptions options) throws SQLException {
+        super(conn, table, columns, options, options.chunkBytes + (options.chunkBytes >> 2));
+        this.pgConn = conn.unwrap(PGConnection.class);
+        reopen();
+    }
+
+    /**
+     * Sends rows some {@link EncodingSink} has already encoded, the caller still reports the
+     * covered records through {@link #recordDone}.
+     */
+    void appendEncoded(List<byte[]> chunks, long rowCount) throws SQLException {
+        long sendStart = System.nanoTime();
+        long bytes = encoder.size();
+        if (encoder.size() > 0) {
+            sendChunk();
+        }
+        for (byte[] chunk : chunks) {
+            copyIn.writeToCopy(chunk, 0, chunk.length);
+            bytes += chunk.length;
+        }
+        rowsAppended(rowCount, bytes, sendStart);
+    }
+
+    @Override
+    protected void sendChunk() throws SQLException {
+        copyIn.writeToCopy(encoder.array(), 0, encoder.size());
+        encoder.reset();
+    }
+
+    @Override
+    protected void completeStatement() throws SQLException {
+        encoder.raw(PgBinaryEncoder.TRAILER);
+        sendChunk();
+        copyIn.endCopy();
+    }
+
+    @Override
+    protected void reopen() throws SQLException {
+        copyIn = pgConn.getCopyAPI().copyIn("COPY " + table + " (" + columns + ") FROM STDIN (FORMAT binary)");
+        encoder.raw(PgBinaryEncoder.HEADER);
+    }
+
+    @Override
+    protected void abort() throws SQLException {
+        if (copyIn.isActive()) {
+            copyIn.cancelCopy();
+        }
+    }
+
+    @Override
+    protected void release() {
+    }
+}
@@ -0,0 +1,47 @@
+package io.sustc.service.impl;
+
+import java.util.List;
+
+/**
+ * What a {@link DanmuStream} hands to its subscriber: either the danmu of the next stretch of
+ * the video, or danmu sent live into a stretch that was already handed out.
+ */
+public final class DanmuBatch {
+
+    private final float timeStart;
+    private final float timeEnd;
+    private final List<Long> danmuIds;
+    private final boolean live;
+
+    DanmuBatch(float timeStart, float timeEnd, List<Long> danmuIds, boolean live) {
+        this.timeStart = timeStart;
+        this.timeEnd = timeEnd;
+        this.danmuIds = danmuIds;
+        this.live = live;
+    }
+
+    /**
+     * @return where the stretch starts, for a live batch the time of its earliest danmu
+     */
+    public float getTimeStart() {
+        return timeStart;
+    }
+
+    /**
+     * @return where the stretch ends (exclusive), for a live batch the time of its latest danmu
+     */
+    public float getTimeEnd() {
+        return timeEnd;
+    }
+
+    /**
+     * @return the danmu_ids in time order, live batches in the order they were sent
+     */
+    public List<Long> getDanmuIds() {
+        return danmuIds;
+    }
+
+    public boolean isLive() {
+        return live;
+    }
+}
@@ -6,11 +6,9 @@ import io.sustc.service.DanmuService;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
-import javax.sql.DataSource;
 import java.sql.Connection;
 import java.sql.SQLException;
 import java.util.ArrayList;
-import java.util.Comparator;
 import java.util.List;
 import java.sql.*;
 
@@ -20,23 +18,43 @@ import java.sql.*;
 public class DanmuServiceImpl implements DanmuService {
     static int test = 888;
     @Autowired
-    private DataSource dataSource;
+    private ConnectionScope connections;
+
+    @Autowired
+    private VideoKeys videoKeys;
+
+    @Autowired
+    private IdentityResolver identities;
+
+    @Autowired
+    private DanmuTimelineIndex timelines;
+
+    @Autowired
+    private DanmuWriteBuffer writes;
+
+    @Autowired
+    private DanmuStreams danmuStreams;
+
     @Override
     public long sendDanmu(AuthInfo auth, String bv, String content, float time) {
-        // Check if authentication is valid
-        if (!isAuthValid(auth)) {
-            return -1;
-        }
-        auth.setMid(AuthMidFromQQorWeChat(auth));
+        int vid;
+        long danmuId;
+        try (Connection conn = connections.getConnection()) {
+            // Check if authentication is valid
+            if (!isAuthValid(auth)) {
+                return -1;
+            }
+            auth.setMid(AuthMidFromQQorWeChat(auth));
 
-        try (Connection conn = dataSource.getConnection()) {
             // Check if the video exists and if the user has watched it
-            if(!isVideoExist(conn,bv))
+            Integer videoId = videoKeys.vid(conn, bv);
+            if(videoId == null)
                 return -1;
+            vid = videoId;
             if (content == null || content.isEmpty()) {
                 return -1;  // Invalid content
             }
-            if (!hasUserWatchedVideo(conn, auth.getMid(), bv)) {
+            if (!hasUserWatchedVideo(conn, auth.getMid(), vid)) {
                 return -1;  // Video not found or user has not watched the video
             }
             if(!isPublished(conn,bv))
@@ -44,12 +62,19 @@ public class DanmuServiceImpl implements DanmuService {
             // Check if the content is valid
             if(timeWrong(bv,time,conn))
                 return -1;
-            // Insert the danmu into the Danmu table
-            return insertDanmu(conn, auth, bv, content, time);
+            if (!writes.isBuffered()) {
+                // Insert the danmu into the Danmu table
+                long inserted = insertDanmu(conn, auth, vid, content, time);
+                connections.afterCommit(() -> timelines.added(vid, inserted, time, content));
+                return inserted;
+            }
+            danmuId = writes.reserveId(conn);
         } catch (SQLException e) {
             e.printStackTrace();
             return -1;  // Exception occurred
         }
+        // 校验完成后连接已经归还，弹幕交给 group commit 写入
+        return writes.write(danmuId, vid, auth.getMid(), time, content) ? danmuId : -1;
     }
 
     private boolean timeWrong(String bv, float time, Connection conn) {
@@ -75,17 +100,6 @@ public class DanmuServiceImpl implements DanmuService {
     }
 
 
-    private boolean isVideoExist(Connection conn, String bv) throws SQLException {
-        String selectSQL = "SELECT 1 FROM Video WHERE bv = ?";
-        try (PreparedStatement stmt = conn.prepareStatement(selectSQL)) {
-            stmt.setString(1, bv);
-
-            ResultSet rs = stmt.executeQuery();
-            return rs.next();  // Return true if a row is found, indicating the video exists
-        }
-    }
-
-
     private boolean isPublished(Connection conn, String bv) throws SQLException {
         String selectSQL = "SELECT public_time FROM Video WHERE bv = ?";
         try (PreparedStatement stmt = conn.prepareStatement(selectSQL)) {
@@ -102,22 +116,22 @@ public class DanmuServiceImpl implements DanmuService {
     }
 
 
-    private boolean hasUserWatchedVideo(Connection conn, long mid, String bv) throws SQLException {
-        String selectSQL = "SELECT 1 FROM viewer_duration WHERE viewer_mid = ? AND bv = ? AND view_time >=0";
+    private boolean hasUserWatchedVideo(Connection conn, long mid, int vid) throws SQLException {
+        String selectSQL = "SELECT 1 FROM viewer_duration WHERE viewer_mid = ? AND vid = ? AND view_time >=0";
         try (PreparedStatement stmt = conn.prepareStatement(selectSQL)) {
             stmt.setLong(1, mid);
-            stmt.setString(2, bv);
+            stmt.setInt(2, vid);
 
             ResultSet rs = stmt.executeQuery();
             return rs.next();
         }
     }
 
-    private long insertDanmu(Connection conn, AuthInfo auth, String bv, String content, float time) throws SQLException {
-        String insertSQL = "INSERT INTO Danmu (bv, mid, time, content, post_time, test) VALUES (?, ?, ?, ?, CURRENT_TIMESTAMP, lastval())";
+    private long insertDanmu(Connection conn, AuthInfo auth, int vid, String content, float time) throws SQLException {
+        String insertSQL = "INSERT INTO Danmu (vid, mid, time, content, post_time, test) VALUES (?, ?, ?, ?, CURRENT_TIMESTAMP, lastval())";
 
         try (PreparedStatement stmt = conn.prepareStatement(insertSQL, Statement.RETURN_GENERATED_KEYS)) {
-            stmt.setString(1, bv);
+            stmt.setInt(1, vid);
             stmt.setLong(2, auth.getMid());
             stmt.setFloat(3, time);
             stmt.setString(4, content);
@@ -149,107 +163,114 @@ public class DanmuServiceImpl implements DanmuService {
 
     @Override
     public List<Long> displayDanmu(String bv, float timeStart, float timeEnd, boolean filter) {
-        if (!isPublished(bv) || timeStart > timeEnd || timeStart < 0 || timeEnd < 0) {
+        if (timeStart > timeEnd || timeStart < 0 || timeEnd < 0) {
             return null;
         }
-
-        String selectDanmuSQL;
-        if (filter) {
-            // 使用 GROUP BY content，并选择每个组中最早发布的弹幕
-            selectDanmuSQL = "SELECT danmu_id FROM danmu WHERE bv = ? AND time >= ? AND time <= ? " +
-                    "AND (content, time) IN (SELECT content, MIN(time) FROM danmu WHERE bv = ? AND time >= ? AND time <= ? GROUP BY content)";
-        } else {
-            selectDanmuSQL = "SELECT danmu_id FROM danmu WHERE bv = ? AND time >= ? AND time <= ?";
+        if (!timelines.isEnabled()) {
+            return queryDanmu(bv, timeStart, timeEnd, filter);
         }
 
-        try (Connection conn = dataSource.getConnection();
-             PreparedStatement preparedStatement = conn.prepareStatement(selectDanmuSQL)) {
-            if (timeWrong(bv, timeEnd, conn) || !isVideoExist(conn, bv)) {
+        // 播放中的视频直接从内存里的时间轴取，不访问数据库
+        Integer vid = videoKeys.cached(bv);
+        DanmuTimelineIndex.Timeline timeline = vid == null ? null : timelines.cached(vid);
+        if (timeline == null) {
+            // 时间轴会一直缓存下去，只从主库加载
+            try (Connection conn = connections.getPrimaryReadConnection()) {
+                vid = videoKeys.vid(conn, bv);
+                timeline = vid == null ? null : timelines.get(conn, vid);
+            } catch (SQLException e) {
+                e.printStackTrace();
                 return null;
             }
+        }
+        if (timeline == null) {
+            return null;  // Video not found
+        }
+        // 未发布，或者 timeEnd 超过视频时长
+        if (!timeline.isPublished() || timeline.getDuration() < timeEnd) {
+            return null;
+        }
+        return timeline.window(timeStart, timeEnd, filter);
+    }
 
-            preparedStatement.setString(1, bv);
-            preparedStatement.setFloat(2, timeStart);
-            preparedStatement.setFloat(3, timeEnd);
-
-            // 如果是 filter 模式，需要再次设置 bv、timeStart 和 timeEnd 的值
-            if (filter) {
-                preparedStatement.setString(4, bv);
-                preparedStatement.setFloat(5, timeStart);
-                preparedStatement.setFloat(6, timeEnd);
-            }
-
-            ResultSet resultSet = preparedStatement.executeQuery();
-            List<Long> danmuIds = new ArrayList<>();
-            while (resultSet.next()) {
-                danmuIds.add(resultSet.getLong(1));
+    /**
+     * 直播式播放：订阅 bv 从 position 开始的弹幕，不用再反复调用 displayDanmu 轮询。
+     * 播放器按需 request 后续的时间窗口，新发送的弹幕由 sendDanmu 推送过来，见 {@link DanmuStream}。
+     *
+     * @return 视频不存在、未发布或者 position 超过视频时长时返回 null
+     */
+    public DanmuStream subscribeDanmu(String bv, float position) {
+        try {
+            Integer vid = videoKeys.cached(bv);
+            if (vid == null) {
+                try (Connection conn = connections.getReadConnection()) {
+                    vid = videoKeys.vid(conn, bv);
+                }
             }
-
-            // 对返回的弹幕 id 按照它们对应的 time 进行排序
-            danmuIds.sort(Comparator.comparingLong(this::getDanmuTime));
-
-            return danmuIds;
-
+            return vid == null ? null : danmuStreams.open(vid, position);
         } catch (SQLException e) {
-            // 处理异常
             e.printStackTrace();
             return null;
         }
     }
 
-    // 获取弹幕的时间
-    private long getDanmuTime(long danmuId) {
-        String queryTimeSQL = "SELECT time FROM danmu WHERE danmu_id = ?";
-
-        try (Connection conn = dataSource.getConnection();
-             PreparedStatement preparedStatement = conn.prepareStatement(queryTimeSQL)) {
-
-            preparedStatement.setLong(1, danmuId);
+    private List<Long> queryDanmu(String bv, float timeStart, float timeEnd, boolean filter) {
+        // 视频检查和弹幕查询合成一条语句：视频不存在时没有行，视频存在但区间内没有弹幕时只有一行 danmu_id 为 NULL
+        // filter 模式下同一 content 只保留 time 最早的弹幕（并列的都保留），排序直接由数据库按 time 完成
+        String danmuSQL = filter
+                ? "SELECT danmu_id, time FROM (" +
+                  "    SELECT danmu_id, time, rank() OVER (PARTITION BY content ORDER BY time) AS r " +
+                  "    FROM danmu WHERE vid = v.vid AND time >= ? AND time <= ?" +
+                  ") ranked WHERE r = 1"
+                : "SELECT danmu_id, time FROM danmu WHERE vid = v.vid AND time >= ? AND time <= ?";
+        String selectDanmuSQL = "SELECT v.public_time IS NOT NULL AS published, v.duration, d.danmu_id " +
+                "FROM video v " +
+                "LEFT JOIN LATERAL (" + danmuSQL + ") d ON TRUE " +
+                "WHERE v.bv = ? " +
+                "ORDER BY d.time, d.danmu_id";
+
+        try (Connection conn = connections.getReadConnection();
+             PreparedStatement preparedStatement = conn.prepareStatement(selectDanmuSQL)) {
+            preparedStatement.setFloat(1, timeStart);
+            preparedStatement.setFloat(2, timeEnd);
+            preparedStatement.setString(3, bv);
 
-            ResultSet resultSet = preparedStatement.executeQuery();
-            if (resultSet.next()) {
-                return resultSet.getLong("time");
-            } else {
-                // 如果没有找到对应的弹幕，可以返回一个默认值或者抛出异常
-                throw new RuntimeException("No corresponding danmu found for danmu_id: " + danmuId);
+            List<Long> danmuIds = new ArrayList<>();
+            try (ResultSet resultSet = preparedStatement.executeQuery()) {
+                if (!resultSet.next()) {
+                    return null;  // Video not found
+                }
+                // 未发布，或者 timeEnd 超过视频时长
+                if (!resultSet.getBoolean("published") || resultSet.getFloat("duration") < timeEnd) {
+                    return null;
+                }
+                do {
+                    long danmuId = resultSet.getLong("danmu_id");
+                    if (!resultSet.wasNull()) {
+                        danmuIds.add(danmuId);
+                    }
+                } while (resultSet.next());
             }
-
+            return danmuIds;
 
         } catch (SQLException e) {
             // 处理异常
             e.printStackTrace();
-            // 如果查询过程中发生异常，也可以返回默认值或者抛出异常
-            throw new RuntimeException("Error while querying danmu time for danmu_id: " + danmuId, e);
+            return null;
         }
     }
 
 
 
-    private boolean isPublished(String bv) {
-        String selectPublishedSQL = "SELECT public_time FROM Video WHERE bv = ?";
-        try (Connection conn = dataSource.getConnection();
-             PreparedStatement preparedStatement = conn.prepareStatement(selectPublishedSQL)) {
-
-            preparedStatement.setString(1, bv);
-
-            ResultSet resultSet = preparedStatement.executeQuery();
-            return resultSet.next() && resultSet.getTimestamp("public_time") != null;
-
-        } catch (SQLException e) {
-            // 处理异常
-            e.printStackTrace();
-            return false;
-        }
-    }
 
     @Override
     public boolean likeDanmu(AuthInfo auth, long id) {
-        if (!isAuthValid(auth)) {
-            return false;
-        }
-        auth.setMid(AuthMidFromQQorWeChat(auth));
+        try (Connection conn = connections.getConnection()) {
+            if (!isAuthValid(auth)) {
+                return false;
+            }
+            auth.setMid(AuthMidFromQQorWeChat(auth));
 
-        try (Connection conn = dataSource.getConnection()) {
             if(!isDanmuExist(id,conn)) {
                 return false;
             }
@@ -278,11 +299,15 @@ public class DanmuServiceImpl implements DanmuService {
 
     private boolean hasWatched(AuthInfo auth, long id, Connection conn) {
         try {
+            Integer vid = getDanmuVidById(conn, id);
+            if (vid == null) {
+                return false;
+            }
             String selectSQL = "SELECT 1 FROM viewer_duration " +
-                    "WHERE viewer_mid = ? AND bv = ? AND view_time >= 0";
+                    "WHERE viewer_mid = ? AND vid = ? AND view_time >= 0";
             try (PreparedStatement stmt = conn.prepareStatement(selectSQL)) {
                 stmt.setLong(1, auth.getMid());
-                stmt.setString(2, getDanmuBVById(conn, id));
+                stmt.setInt(2, vid);
 
                 ResultSet rs = stmt.executeQuery();
                 return rs.next();
@@ -293,14 +318,14 @@ public class DanmuServiceImpl implements DanmuService {
         }
     }
 
-    private String getDanmuBVById(Connection conn, long id) throws SQLException {
-        String selectSQL = "SELECT bv FROM danmu WHERE danmu_id = ?";
+    private Integer getDanmuVidById(Connection conn, long id) throws SQLException {
+        String selectSQL = "SELECT vid FROM danmu WHERE danmu_id = ?";
         try (PreparedStatement stmt = conn.prepareStatement(selectSQL)) {
             stmt.setLong(1, id);
 
             ResultSet rs = stmt.executeQuery();
             if (rs.next()) {
-                return rs.getString("bv");
+                return rs.getInt("vid");
             }
         }
         return null;
@@ -319,11 +344,11 @@ public class DanmuServiceImpl implements DanmuService {
     }
 
     private void likeDanmu(Connection conn, long mid, long danmuId) throws SQLException {
-        String insertSQL = "INSERT INTO danmu_like (danmu_id, liked_by,bv) VALUES (?, ?,?)";
+        String insertSQL = "INSERT INTO danmu_like (danmu_id, liked_by,vid) VALUES (?, ?,?)";
         try (PreparedStatement stmt = conn.prepareStatement(insertSQL)) {
             stmt.setLong(1, danmuId);
             stmt.setLong(2, mid);
-            stmt.setString(3, getDanmuBVById(conn,danmuId));
+            stmt.setObject(3, getDanmuVidById(conn,danmuId), Types.INTEGER);
             stmt.executeUpdate();
         }
     }
@@ -338,79 +363,18 @@ public class DanmuServiceImpl implements DanmuService {
     }
 
     private boolean isAuthValid(AuthInfo auth) {
-        // Check if authentication information is valid
-        if (AuthMidFromQQorWeChat(auth)==-1) {
-            return false; // Mid is invalid
-        }
-
-        if (isNotEmpty(auth.getQq()) && isNotEmpty(auth.getWechat())) {
-            // Check if both QQ and WeChat are non-empty
-            // and if they correspond to the same user
-            try (Connection conn = dataSource.getConnection()) {
-                long userByQq = getUserByQQ(conn, auth.getQq());
-                long userByWechat = getUserByWechat(conn, auth.getWechat());
-
-                if ( userByQq != userByWechat) {
-                    return false;
-                }
-            } catch (SQLException e) {
-                handleSQLException(e);
-                return false;
-            }
-        }
-
-        return true;
+        return AuthMidFromQQorWeChat(auth) != -1;
     }
 
     private long AuthMidFromQQorWeChat(AuthInfo auth) {
-        long authMid = auth.getMid();
-        if (isExistInUserBasic(authMid)) {
-            return authMid; // Auth has a valid and existing mid
-        }
-
-        try (Connection conn = dataSource.getConnection()) {
-            // If auth's mid does not exist, check by QQ
-            if (isNotEmpty(auth.getQq())) {
-                long qqMid = getUserByQQ(conn, auth.getQq());
-                if (qqMid > 0) {
-                    return qqMid; // User found by QQ
-                }
-            }
-
-            // If auth's mid and QQ do not exist, check by WeChat
-            if (isNotEmpty(auth.getWechat())) {
-                long wechatMid = getUserByWechat(conn, auth.getWechat());
-                if (wechatMid > 0) {
-                    return wechatMid; // User found by WeChat
-                }
-            }
-        } catch (SQLException e) {
-            handleSQLException(e);
-        }
-
-        return -1; // Default return value
-    }
-
-    private boolean isExistInUserBasic(long mid) {
-        // Check if user ID is valid by querying the user table
-        try (Connection conn = dataSource.getConnection()) {
-            String userExistsSql = "SELECT 1 FROM User_basic WHERE mid = ?";
-            try (PreparedStatement userExistsStmt = conn.prepareStatement(userExistsSql)) {
-                userExistsStmt.setLong(1, mid);
-                try (ResultSet userExistsRs = userExistsStmt.executeQuery()) {
-                    return userExistsRs.next();
-                }
-            }
+        try {
+            return identities.resolve(auth);
         } catch (SQLException e) {
             handleSQLException(e);
-            return false;
+            return -1;
         }
     }
 
-    private boolean isNotEmpty(String value) {
-        // Check if a string is not empty
-        return value != null && !value.isEmpty();
-    }
     private void handleSQLException(SQLException e) {
         System.err.println("SQL Exception:");
         while (e != null) {
@@ -420,25 +384,7 @@ public class DanmuServiceImpl implements DanmuService {
             e = e.getNextException();
         }
     }
-    private long getUserByQQ(Connection conn, String qq) throws SQLException {
-        String sql = "SELECT mid FROM user_qq WHERE qq = ?";
-        try (PreparedStatement stmt = conn.prepareStatement(sql)) {
-            stmt.setString(1, qq);
-            try (ResultSet rs = stmt.executeQuery()) {
-                return rs.next() ? rs.getLong("mid") : -1;
-            }
-        }
-    }
 
-    private long getUserByWechat(Connection conn, String wechat) throws SQLException {
-        String sql = "SELECT mid FROM user_wechat WHERE wechat = ?";
-        try (PreparedStatement stmt = conn.prepareStatement(sql)) {
-            stmt.setString(1, wechat);
-            try (ResultSet rs = stmt.executeQuery()) {
-                return rs.next() ? rs.getLong("mid") : -1;
-            }
-        }
-    }
     public boolean isDanmuExist(long id, Connection conn) {
         try {
             String selectSQL = "SELECT 1 FROM danmu WHERE danmu_id = ?";
@@ -0,0 +1,311 @@
+package io.sustc.service.impl;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The danmu of one video as a player sees them, opened by
+ * {@link DanmuServiceImpl#subscribeDanmu}. Each requested item is a {@link DanmuBatch}: the
+ * danmu of the next {@code sustc.danmu-stream.window-seconds} after the playback position, read
+ * from the {@link DanmuTimelineIndex}, or the danmu sent since into a stretch that was already
+ * handed out. A player requests a few windows ahead of what it is showing, and nothing is read
+ * from the database while the video's timeline stays in memory.
+ * <p>
+ * Live danmu wait for demand like windows do. When more than
+ * {@code sustc.danmu-stream.live-buffer} of them are waiting the oldest are dropped, a slow
+ * player loses live danmu instead of holding memory. A danmu reported by the index after it
+ * was already read with a recent window is not pushed again. {@link #seek} moves the playback
+ * position.
+ * One subscriber per stream, items are delivered on the stream executor.
+ */
+@Slf4j
+public final class DanmuStream implements Flow.Publisher<DanmuBatch>, Flow.Subscription {
+
+    // a danmu is committed before the index hears of it, a window read in between already has it
+    private static final long RECENT_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+    /**
+     * The danmu_ids of one window, kept for {@link #RECENT_NANOS} after it was read.
+     */
+    private static final class RecentWindow {
+        final long readAt = System.nanoTime();
+        final Set<Long> danmuIds;
+
+        RecentWindow(List<Long> danmuIds) {
+            this.danmuIds = new HashSet<>(danmuIds);
+        }
+    }
+
+    private final DanmuStreams streams;
+    private final DanmuTimelineIndex timelines;
+    private final Executor executor;
+    private final int vid;
+    private final float duration;
+    private final float window;
+    private final int liveBuffer;
+
+    // the fields below are guarded by this
+    private Flow.Subscriber<? super DanmuBatch> subscriber;
+    private float position;
+    // where the next window starts, everything before it was handed out
+    private double nextStart;
+    private long demand;
+    private List<Long> liveIds = new ArrayList<>();
+    private double liveFrom = Double.POSITIVE_INFINITY;
+    private double liveTo = Double.NEGATIVE_INFINITY;
+    private long dropped;
+    // oldest first
+    private final Deque<RecentWindow> recent = new ArrayDeque<>();
+    private boolean cancelled;
+    // completes at the next delivery, see finish()
+    private boolean finished;
+
+    // serializes deliveries, see schedule()
+    private final AtomicInteger pending = new AtomicInteger();
+
+    DanmuStream(DanmuStreams streams, DanmuTimelineIndex timelines, Executor executor,
+                int vid, float duration, float position, float window, int liveBuffer) {
+        this.streams = streams;
+        this.timelines = timelines;
+        this.executor = executor;
+        this.vid = vid;
+        this.duration = duration;
+        this.position = position;
+        this.nextStart = position;
+        this.window = window;
+        this.liveBuffer = liveBuffer;
+    }
+
+    int getVid() {
+        return vid;
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super DanmuBatch> subscriber) {
+        synchronized (this) {
+            if (this.subscriber == null && !cancelled) {
+                this.subscriber = subscriber;
+                subscriber.onSubscribe(this);
+                return;
+            }
+        }
+        subscriber.onSubscribe(new Flow.Subscription() {
+            @Override
+            public void request(long n) {
+            }
+
+            @Override
+            public void cancel() {
+            }
+        });
+        subscriber.onError(new IllegalStateException("A danmu stream has a single subscriber"));
+    }
+
+    @Override
+    public void request(long n) {
+        if (n <= 0) {
+            fail(new IllegalArgumentException("Requested " + n + " danmu batches"));
+            return;
+        }
+        synchronized (this) {
+            demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+        }
+        schedule();
+    }
+
+    @Override
+    public void cancel() {
+        synchronized (this) {
+            if (cancelled) {
+                return;
+            }
+            cancelled = true;
+            liveIds = new ArrayList<>();
+        }
+        streams.closed(this);
+        if (dropped > 0) {
+            log.debug("Danmu stream of video {} dropped {} live danmu", vid, dropped);
+        }
+    }
+
+    /**
+     * Continues from {@code position}, the windows and live danmu not delivered yet are dropped.
+     */
+    public void seek(float position) {
+        if (position < 0 || position > duration) {
+            throw new IllegalArgumentException("Position " + position + " outside of the video");
+        }
+        synchronized (this) {
+            this.position = position;
+            nextStart = position;
+            liveIds = new ArrayList<>();
+            liveFrom = Double.POSITIVE_INFINITY;
+            liveTo = Double.NEGATIVE_INFINITY;
+        }
+        schedule();
+    }
+
+    /**
+     * Completes the stream from the stream executor, used when the data it was reading is
+     * reloaded or emptied.
+     */
+    void finish() {
+        synchronized (this) {
+            finished = true;
+        }
+        schedule();
+    }
+
+    /**
+     * A danmu was committed, called under the index's lock for this video.
+     */
+    void added(long danmuId, double time) {
+        synchronized (this) {
+            // danmu from nextStart on arrive with their window
+            if (cancelled || time < position || time >= nextStart || inRecentWindow(danmuId)) {
+                return;
+            }
+            liveIds.add(danmuId);
+            liveFrom = Math.min(liveFrom, time);
+            liveTo = Math.max(liveTo, time);
+            if (liveIds.size() > liveBuffer) {
+                liveIds.remove(0);
+                dropped++;
+            }
+        }
+        schedule();
+    }
+
+    private void schedule() {
+        if (pending.getAndIncrement() == 0) {
+            executor.execute(this::deliver);
+        }
+    }
+
+    private void deliver() {
+        int missed = 1;
+        do {
+            try {
+                deliverAvailable();
+            } catch (SQLException e) {
+                fail(e);
+            } catch (RuntimeException e) {
+                log.warn("Danmu stream subscriber failed, cancelling", e);
+                cancel();
+            }
+            missed = pending.addAndGet(-missed);
+        } while (missed != 0);
+    }
+
+    private void deliverAvailable() throws SQLException {
+        while (true) {
+            DanmuBatch batch = null;
+            boolean complete;
+            synchronized (this) {
+                complete = finished && !cancelled && subscriber != null;
+            }
+            if (complete) {
+                complete();
+                return;
+            }
+            synchronized (this) {
+                if (cancelled || subscriber == null || demand == 0) {
+                    return;
+                }
+                if (!liveIds.isEmpty()) {
+                    batch = new DanmuBatch((float) liveFrom, (float) liveTo, liveIds, true);
+                    liveIds = new ArrayList<>();
+                    liveFrom = Double.POSITIVE_INFINITY;
+                    liveTo = Double.NEGATIVE_INFINITY;
+                } else if (nextStart == Double.POSITIVE_INFINITY) {
+                    // every window is out, only live danmu are left to come
+                    return;
+                }
+            }
+            if (batch == null) {
+                batch = timelines.withTimeline(vid, this::nextWindow);
+                if (batch == null) {
+                    // the video is gone
+                    complete();
+                    return;
+                }
+            }
+            Flow.Subscriber<? super DanmuBatch> target;
+            synchronized (this) {
+                if (cancelled) {
+                    return;
+                }
+                demand--;
+                target = subscriber;
+            }
+            target.onNext(batch);
+        }
+    }
+
+    // runs under the index's lock for this video, so no danmu of the window is added meanwhile
+    private synchronized DanmuBatch nextWindow(DanmuTimelineIndex.Timeline timeline) {
+        if (timeline == null) {
+            return null;
+        }
+        double from = nextStart;
+        // the last window also takes danmu sent at exactly the end of the video
+        double to = from + window >= duration ? Double.POSITIVE_INFINITY : from + window;
+        List<Long> danmuIds = timeline.range(from, to);
+        nextStart = to;
+        if (!danmuIds.isEmpty()) {
+            recent.addLast(new RecentWindow(danmuIds));
+        }
+        return new DanmuBatch((float) from, (float) Math.min(to, duration), danmuIds, false);
+    }
+
+    // guarded by this
+    private boolean inRecentWindow(long danmuId) {
+        long now = System.nanoTime();
+        while (!recent.isEmpty() && now - recent.peekFirst().readAt > RECENT_NANOS) {
+            recent.removeFirst();
+        }
+        for (RecentWindow window : recent) {
+            if (window.danmuIds.contains(danmuId)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void complete() {
+        Flow.Subscriber<? super DanmuBatch> target;
+        synchronized (this) {
+            if (cancelled) {
+                return;
+            }
+            target = subscriber;
+        }
+        cancel();
+        target.onComplete();
+    }
+
+    private void fail(Throwable error) {
+        Flow.Subscriber<? super DanmuBatch> target;
+        synchronized (this) {
+            if (cancelled) {
+                return;
+            }
+            target = subscriber;
+        }
+        cancel();
+        if (target != null) {
+            target.onError(error);
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package io.sustc.service.impl;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Opens the {@link DanmuStream}s of the players and pushes every committed danmu to the
+ * streams of its video. Streams are fed from the {@link DanmuTimelineIndex}, which reports
+ * new danmu whether it holds the video's timeline or not, and every open stream completes once
+ * the index is cleared by an import or a truncate.
+ */
+@Component
+public class DanmuStreams implements DanmuTimelineIndex.Listener {
+
+    private final DanmuTimelineIndex timelines;
+
+    private final float window;
+
+    private final int liveBuffer;
+
+    // vid -> the open streams of that video
+    private final Map<Integer, Set<DanmuStream>> streams = new ConcurrentHashMap<>();
+
+    private final ExecutorService executor;
+
+    public DanmuStreams(DanmuTimelineIndex timelines,
+                        @Value("${sustc.danmu-stream.window-seconds:10}") float window,
+                        @Value("${sustc.danmu-stream.live-buffer:1024}") int liveBuffer,
+                        @Value("${sustc.danmu-stream.threads:2}") int threads) {
+        this.timelines = timelines;
+        this.window = window > 0 ? window : 10;
+        this.liveBuffer = Math.max(liveBuffer, 1);
+        this.executor = Executors.newFixedThreadPool(Math.max(threads, 1), r -> {
+            Thread thread = new Thread(r, "danmu-stream");
+            thread.setDaemon(true);
+            return thread;
+        });
+        timelines.addListener(this);
+    }
+
+    /**
+     * @return a stream of the danmu of {@code vid} from {@code position} on, or {@code null}
+     * when the video does not exist, is not published or is shorter than {@code position}
+     */
+    DanmuStream open(int vid, float position) throws SQLException {
+        if (position < 0) {
+            return null;
+        }
+        DanmuTimelineIndex.Timeline timeline = timelines.withTimeline(vid, t -> t);
+        if (timeline == null || !timeline.isPublished() || timeline.getDuration() < position) {
+            return null;
+        }
+        DanmuStream stream = new DanmuStream(this, timelines, executor, vid, timeline.getDuration(),
+                position, window, liveBuffer);
+        streams.compute(vid, (key, open) -> {
+            Set<DanmuStream> set = open != null ? open : ConcurrentHashMap.newKeySet();
+            set.add(stream);
+            return set;
+        });
+        return stream;
+    }
+
+    void closed(DanmuStream stream) {
+        streams.computeIfPresent(stream.getVid(), (key, open) -> {
+            open.remove(stream);
+            return open.isEmpty() ? null : open;
+        });
+    }
+
+    @Override
+    public void added(int vid, long danmuId, double time) {
+        Set<DanmuStream> open = streams.get(vid);
+        if (open != null) {
+            for (DanmuStream stream : open) {
+                stream.added(danmuId, time);
+            }
+        }
+    }
+
+    /**
+     * The data was reloaded or emptied, every open stream completes.
+     */
+    @Override
+    public void cleared() {
+        for (Set<DanmuStream> open : streams.values()) {
+            for (DanmuStream stream : open) {
+                stream.finish();
+            }
+        }
+    }
+}
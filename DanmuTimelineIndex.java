@@ -0,0 +1,482 @@
+package io.sustc.service.impl;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * Keeps the danmu of recently played videos in memory, so displayDanmu answers a time window
+ * with a binary search instead of a query. Each video has a {@link Timeline}: the time, the
+ * danmu_id and a content fingerprint of every danmu in parallel arrays sorted by
+ * (time, danmu_id), together with the published flag and the duration displayDanmu checks.
+ * <p>
+ * A timeline is loaded with one query the first time its video is played and then kept up to
+ * date: sendDanmu adds the new danmu, deleting a video or an account and updating a video drop
+ * the affected timelines, import and truncate {@link #clear} everything. The services report
+ * their changes after the commit, see {@link ConnectionScope#afterCommit}. Timelines are evicted
+ * least recently played first once their estimated size exceeds
+ * {@code sustc.danmu-index.max-bytes}, a budget of 0 turns the index off.
+ * <p>
+ * {@link Listener}s hear of every committed danmu, whether its timeline is in memory or not.
+ * {@link #withTimeline} reads a timeline under the same lock, so a reader sees each danmu
+ * reported through {@link #added} either in the timeline or through its listener, never
+ * neither. A danmu is committed before it is reported, and a timeline loaded in between
+ * already holds it, so a reader that also listens gets it once more and drops it by its
+ * danmu_id.
+ */
+@Component
+@Slf4j
+public class DanmuTimelineIndex {
+
+    private static final String LOAD_SQL = "SELECT v.public_time IS NOT NULL, v.duration, d.danmu_id, d.time, d.content " +
+            "FROM video v LEFT JOIN danmu d ON d.vid = v.vid " +
+            "WHERE v.vid = ? " +
+            "ORDER BY d.time, d.danmu_id";
+
+    // a changed vid and a timeline loaded for it meet under the same lock
+    private static final int STRIPES = 64;
+
+    /**
+     * Told about every danmu reported through {@link #added}, while no other change to its
+     * video can happen. Must not block.
+     */
+    interface Listener {
+        void added(int vid, long danmuId, double time);
+
+        /**
+         * Told after {@link #clear}, every danmu reported so far may be gone.
+         */
+        default void cleared() {
+        }
+    }
+
+    // a load that keeps losing against writes is done holding them off after this many tries
+    private static final int LOAD_ATTEMPTS = 3;
+
+    private final ConnectionScope connections;
+
+    private final long maxBytes;
+
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+
+    private final Map<Integer, Timeline> timelines = new ConcurrentHashMap<>();
+
+    private final Object[] locks = new Object[STRIPES];
+
+    // bumped under the stripe's lock by every change, a load that raced with one is not kept
+    private final long[] versions = new long[STRIPES];
+
+    private final AtomicLong bytes = new AtomicLong();
+
+    private final AtomicLong clock = new AtomicLong();
+
+    public DanmuTimelineIndex(ConnectionScope connections,
+                              @Value("${sustc.danmu-index.max-bytes:67108864}") long maxBytes) {
+        this.connections = connections;
+        this.maxBytes = maxBytes;
+        for (int i = 0; i < STRIPES; i++) {
+            locks[i] = new Object();
+        }
+    }
+
+    boolean isEnabled() {
+        return maxBytes > 0;
+    }
+
+    /**
+     * @return the timeline of {@code vid} if it is in memory, {@code null} otherwise
+     */
+    Timeline cached(int vid) {
+        Timeline timeline = timelines.get(vid);
+        if (timeline != null) {
+            timeline.lastPlayed = clock.incrementAndGet();
+        }
+        return timeline;
+    }
+
+    /**
+     * @return the timeline of {@code vid}, loaded on {@code conn} when it is not in memory, or
+     * {@code null} when there is no such video
+     */
+    Timeline get(Connection conn, int vid) throws SQLException {
+        Timeline timeline = cached(vid);
+        if (timeline != null) {
+            return timeline;
+        }
+
+        int stripe = stripe(vid);
+        long seen;
+        synchronized (locks[stripe]) {
+            seen = versions[stripe];
+        }
+        timeline = load(conn, vid);
+        if (timeline == null) {
+            return null;
+        }
+        timeline.lastPlayed = clock.incrementAndGet();
+        // a timeline over the whole budget is used once and not kept
+        if (timeline.bytes > maxBytes) {
+            return timeline;
+        }
+        synchronized (locks[stripe]) {
+            if (versions[stripe] != seen) {
+                return timeline;
+            }
+            Timeline present = timelines.putIfAbsent(vid, timeline);
+            if (present != null) {
+                return present;
+            }
+            bytes.addAndGet(timeline.bytes);
+        }
+        if (bytes.get() > maxBytes) {
+            evict();
+        }
+        return timeline;
+    }
+
+    /**
+     * Applies {@code action} to the timeline of {@code vid} while no danmu can be added to it,
+     * loading the timeline from the primary when it is not in memory. {@code action} gets
+     * {@code null} when there is no such video.
+     */
+    <T> T withTimeline(int vid, Function<Timeline, T> action) throws SQLException {
+        int stripe = stripe(vid);
+        for (int attempt = 1; attempt < LOAD_ATTEMPTS; attempt++) {
+            long seen;
+            synchronized (locks[stripe]) {
+                Timeline timeline = cached(vid);
+                if (timeline != null) {
+                    return action.apply(timeline);
+                }
+                seen = versions[stripe];
+            }
+            Timeline loaded;
+            try (Connection conn = connections.getPrimaryReadConnection()) {
+                loaded = get(conn, vid);
+            }
+            synchronized (locks[stripe]) {
+                // nothing changed since the load started, an uncached timeline is as good
+                if (loaded == null || versions[stripe] == seen) {
+                    Timeline timeline = timelines.get(vid);
+                    return action.apply(timeline != null ? timeline : loaded);
+                }
+            }
+        }
+        // the connection comes first, a writer waiting for this lock may hold one of the pool
+        try (Connection conn = connections.getPrimaryReadConnection()) {
+            synchronized (locks[stripe]) {
+                Timeline timeline = cached(vid);
+                return action.apply(timeline != null ? timeline : load(conn, vid));
+            }
+        }
+    }
+
+    void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    private Timeline load(Connection conn, int vid) throws SQLException {
+        try (PreparedStatement stmt = conn.prepareStatement(LOAD_SQL)) {
+            stmt.setInt(1, vid);
+            try (ResultSet rs = stmt.executeQuery()) {
+                if (!rs.next()) {
+                    return null;
+                }
+                Timeline timeline = new Timeline(rs.getBoolean(1), rs.getFloat(2));
+                do {
+                    long danmuId = rs.getLong(3);
+                    if (!rs.wasNull()) {
+                        timeline.append(danmuId, rs.getDouble(4), rs.getString(5));
+                    }
+                } while (rs.next());
+                timeline.loaded();
+                return timeline;
+            }
+        }
+    }
+
+    /**
+     * Called once a new danmu is committed.
+     */
+    void added(int vid, long danmuId, double time, String content) {
+        int stripe = stripe(vid);
+        synchronized (locks[stripe]) {
+            versions[stripe]++;
+            Timeline timeline = timelines.get(vid);
+            if (timeline != null) {
+                bytes.addAndGet(timeline.insert(danmuId, time, content));
+            }
+            for (Listener listener : listeners) {
+                listener.added(vid, danmuId, time);
+            }
+        }
+        if (bytes.get() > maxBytes) {
+            evict();
+        }
+    }
+
+    /**
+     * Drops the timeline of {@code vid}, called once its video or some of its danmu are deleted
+     * or the video itself changed.
+     */
+    void invalidate(int vid) {
+        int stripe = stripe(vid);
+        synchronized (locks[stripe]) {
+            versions[stripe]++;
+            remove(vid);
+        }
+    }
+
+    /**
+     * Forgets every timeline, used when the danmu or video table is reloaded or emptied.
+     */
+    void clear() {
+        for (int stripe = 0; stripe < STRIPES; stripe++) {
+            synchronized (locks[stripe]) {
+                versions[stripe]++;
+            }
+        }
+        for (Integer vid : new ArrayList<>(timelines.keySet())) {
+            invalidate(vid);
+        }
+        for (Listener listener : listeners) {
+            listener.cleared();
+        }
+    }
+
+    /**
+     * Drops the least recently played timelines until the index is back under 90% of its budget.
+     */
+    private synchronized void evict() {
+        if (bytes.get() <= maxBytes) {
+            return;
+        }
+        long target = maxBytes / 10 * 9;
+        // lastPlayed keeps moving, sort a snapshot of it
+        List<long[]> candidates = new ArrayList<>();
+        timelines.forEach((vid, timeline) -> candidates.add(new long[]{timeline.lastPlayed, vid}));
+        candidates.sort(Comparator.comparingLong(candidate -> candidate[0]));
+        int evicted = 0;
+        for (long[] candidate : candidates) {
+            if (bytes.get() <= target) {
+                break;
+            }
+            int vid = (int) candidate[1];
+            synchronized (locks[stripe(vid)]) {
+                if (remove(vid)) {
+                    evicted++;
+                }
+            }
+        }
+        log.debug("Evicted {} danmu timelines, {} bytes left", evicted, bytes.get());
+    }
+
+    // caller holds the stripe's lock
+    private boolean remove(int vid) {
+        Timeline timeline = timelines.remove(vid);
+        if (timeline == null) {
+            return false;
+        }
+        bytes.addAndGet(-timeline.bytes);
+        return true;
+    }
+
+    private static int stripe(int vid) {
+        return Math.floorMod(vid, STRIPES);
+    }
+
+    /**
+     * The danmu of one video sorted by (time, danmu_id). Contents are kept only as a 64-bit
+     * fingerprint, and every danmu remembers the latest earlier time its content was sent at.
+     * A danmu is the earliest of its content inside a window exactly when that time lies before
+     * the window, so the filter mode is one pass over the window without looking at any content.
+     * Two contents sharing a fingerprint would be deduplicated together, at the sizes of a
+     * video's danmu that is a chance of about one in a billion.
+     */
+    static final class Timeline {
+
+        // array headers and the object itself
+        private static final long BASE_BYTES = 256;
+        // a time, a danmu_id, a fingerprint and a previous time
+        private static final long ENTRY_BYTES = 8 + 8 + 8 + 8;
+
+        private final boolean published;
+        private final float duration;
+
+        private double[] times = new double[16];
+        private long[] danmuIds = new long[16];
+        private long[] fingerprints = new long[16];
+        // latest time before times[i] at which the same content was sent, -Infinity if never
+        private double[] previous = new double[16];
+        private int size;
+
+        // fingerprint -> {last time seen, the previous time before it}, only while loading
+        private Map<Long, double[]> lastSeen = new HashMap<>();
+
+        // estimated footprint, only changed under the index's stripe lock
+        private long bytes = BASE_BYTES + 16 * ENTRY_BYTES;
+
+        private volatile long lastPlayed;
+
+        Timeline(boolean published, float duration) {
+            this.published = published;
+            this.duration = duration;
+        }
+
+        boolean isPublished() {
+            return published;
+        }
+
+        float getDuration() {
+            return duration;
+        }
+
+        /**
+         * @return the danmu_ids with {@code timeStart <= time <= timeEnd} in time order. With
+         * {@code filter} only the earliest danmu of each content is kept, all of them when
+         * several share that time.
+         */
+        synchronized List<Long> window(float timeStart, float timeEnd, boolean filter) {
+            List<Long> danmuIds = new ArrayList<>();
+            for (int i = lowerBound(timeStart); i < size && times[i] <= timeEnd; i++) {
+                // the same content was already sent inside the window
+                if (filter && previous[i] >= timeStart) {
+                    continue;
+                }
+                danmuIds.add(this.danmuIds[i]);
+            }
+            return danmuIds;
+        }
+
+        /**
+         * @return the danmu_ids with {@code from <= time < to} in time order
+         */
+        synchronized List<Long> range(double from, double to) {
+            List<Long> danmuIds = new ArrayList<>();
+            for (int i = lowerBound(from); i < size && times[i] < to; i++) {
+                danmuIds.add(this.danmuIds[i]);
+            }
+            return danmuIds;
+        }
+
+        /**
+         * @return the index of the first danmu with {@code time >= from}
+         */
+        private int lowerBound(double from) {
+            int low = 0;
+            int high = size;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (times[mid] < from) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+
+        // rows arrive sorted while loading
+        private void append(long danmuId, double time, String content) {
+            bytes += grow();
+            long fingerprint = fingerprint(content);
+            double[] seen = lastSeen.get(fingerprint);
+            if (seen == null) {
+                seen = new double[]{time, Double.NEGATIVE_INFINITY};
+                lastSeen.put(fingerprint, seen);
+            } else if (seen[0] != time) {
+                seen[1] = seen[0];
+                seen[0] = time;
+            }
+            times[size] = time;
+            danmuIds[size] = danmuId;
+            fingerprints[size] = fingerprint;
+            previous[size] = seen[1];
+            size++;
+        }
+
+        private void loaded() {
+            lastSeen = null;
+        }
+
+        /**
+         * Inserts a danmu at its place in the order, ignoring one that is already there because
+         * the load that created this timeline saw it committed.
+         *
+         * @return how much the estimated size grew
+         */
+        synchronized long insert(long danmuId, double time, String content) {
+            int at = lowerBound(time);
+            while (at < size && times[at] == time && this.danmuIds[at] < danmuId) {
+                at++;
+            }
+            if (at < size && times[at] == time && this.danmuIds[at] == danmuId) {
+                return 0;
+            }
+
+            // the same content right before and right after the new danmu
+            long fingerprint = fingerprint(content);
+            double before = Double.NEGATIVE_INFINITY;
+            double after = Double.POSITIVE_INFINITY;
+            for (int i = 0; i < size; i++) {
+                if (fingerprints[i] == fingerprint) {
+                    if (times[i] < time) {
+                        before = Math.max(before, times[i]);
+                    } else if (times[i] > time) {
+                        after = Math.min(after, times[i]);
+                    }
+                }
+            }
+            // the next occurrences now come right after this one
+            for (int i = at; i < size && times[i] <= after; i++) {
+                if (times[i] == after && fingerprints[i] == fingerprint) {
+                    previous[i] = time;
+                }
+            }
+
+            long grown = grow();
+            bytes += grown;
+            System.arraycopy(times, at, times, at + 1, size - at);
+            System.arraycopy(this.danmuIds, at, this.danmuIds, at + 1, size - at);
+            System.arraycopy(fingerprints, at, fingerprints, at + 1, size - at);
+            System.arraycopy(previous, at, previous, at + 1, size - at);
+            times[at] = time;
+            this.danmuIds[at] = danmuId;
+            fingerprints[at] = fingerprint;
+            previous[at] = before;
+            size++;
+            return grown;
+        }
+
+        private long grow() {
+            if (size < times.length) {
+                return 0;
+            }
+            int capacity = times.length * 2;
+            times = Arrays.copyOf(times, capacity);
+            danmuIds = Arrays.copyOf(danmuIds, capacity);
+            fingerprints = Arrays.copyOf(fingerprints, capacity);
+            previous = Arrays.copyOf(previous, capacity);
+            return (capacity - size) * ENTRY_BYTES;
+        }
+
+        static long fingerprint(String content) {
+            return content == null ? 0 : Hashing.mix(Hashing.fnv1a(content));
+        }
+    }
+}
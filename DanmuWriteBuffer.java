@@ -0,0 +1,318 @@
+package io.sustc.service.impl;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Group commit for sendDanmu. The service validates a danmu as before, then takes its
+ * danmu_id from a block reserved from the SERIAL sequence and queues the row. A background
+ * thread writes everything queued every {@code sustc.danmu-write.flush-interval-ms}, or as soon
+ * as {@code sustc.danmu-write.batch-size} rows are waiting, with one multi-row INSERT and one
+ * commit per batch. How long sendDanmu waits for that commit is the {@link DanmuWriteMode}.
+ * <p>
+ * A flushed danmu is reported to the {@link DanmuTimelineIndex} after its commit. Deleting a
+ * video or an account {@link #flush}es first so the queued danmu are deleted with them. A danmu
+ * queued after that is only written while its video and sender still exist, the INSERT waits
+ * for a delete that holds their row and skips the danmu once it committed. Import and truncate
+ * {@link #discard} the queue and the reserved ids together with the rest of the data.
+ */
+@Component
+@Slf4j
+public class DanmuWriteBuffer implements DisposableBean {
+
+    private static final String RESERVE_SQL = "SELECT nextval(pg_get_serial_sequence('danmu', 'danmu_id')) " +
+            "FROM generate_series(1, ?)";
+
+    // test 列和逐条 INSERT 时的 lastval() 一样，等于 danmu_id
+    // 视频和用户加 KEY SHARE 锁再检查：正在删除它们的事务提交之前这里会等待，提交之后这些行被跳过
+    private static final String INSERT_SQL = "WITH r AS (" +
+            "SELECT * FROM unnest(?::BIGINT[], ?::INT[], ?::BIGINT[], ?::FLOAT8[], ?::VARCHAR[], ?::TIMESTAMP[]) " +
+            "AS r(id, vid, mid, time, content, post_time)), " +
+            "v AS (SELECT vid FROM video WHERE vid IN (SELECT vid FROM r) FOR KEY SHARE), " +
+            "u AS (SELECT mid FROM user_basic WHERE mid IN (SELECT mid FROM r) FOR KEY SHARE) " +
+            "INSERT INTO danmu (danmu_id, vid, mid, time, content, post_time, test) " +
+            "SELECT id, vid, mid, time, content, post_time, id FROM r " +
+            "WHERE vid IN (SELECT vid FROM v) AND mid IN (SELECT mid FROM u) " +
+            "RETURNING danmu_id";
+
+    private static final class Row {
+        final long danmuId;
+        final int vid;
+        final long mid;
+        final double time;
+        final String content;
+        final Timestamp postTime = new Timestamp(System.currentTimeMillis());
+        // completed with whether the row was committed, null when nobody waits for it
+        final CompletableFuture<Boolean> committed;
+
+        Row(long danmuId, int vid, long mid, double time, String content, boolean waited) {
+            this.danmuId = danmuId;
+            this.vid = vid;
+            this.mid = mid;
+            this.time = time;
+            this.content = content;
+            this.committed = waited ? new CompletableFuture<>() : null;
+        }
+
+        void done(boolean success) {
+            if (committed != null) {
+                committed.complete(success);
+            }
+        }
+    }
+
+    private final DataSource dataSource;
+
+    private final DanmuTimelineIndex timelines;
+
+    private final DanmuWriteMode mode;
+
+    private final int batchSize;
+
+    private final int idBlock;
+
+    private final long commitTimeout;
+
+    private final BlockingQueue<Row> queue;
+
+    // ids taken from the sequence and not handed out yet
+    private final Deque<Long> reservedIds = new ArrayDeque<>();
+
+    private final AtomicBoolean flushRequested = new AtomicBoolean();
+
+    private final ScheduledExecutorService flusher;
+
+    public DanmuWriteBuffer(DataSource dataSource, DanmuTimelineIndex timelines,
+                            @Value("${sustc.danmu-write.mode:DIRECT}") DanmuWriteMode mode,
+                            @Value("${sustc.danmu-write.flush-interval-ms:5}") long flushInterval,
+                            @Value("${sustc.danmu-write.batch-size:1000}") int batchSize,
+                            @Value("${sustc.danmu-write.id-block:100}") int idBlock,
+                            @Value("${sustc.danmu-write.queue-capacity:100000}") int queueCapacity,
+                            @Value("${sustc.danmu-write.commit-timeout-ms:30000}") long commitTimeout) {
+        this.dataSource = dataSource;
+        this.timelines = timelines;
+        this.mode = mode;
+        this.batchSize = Math.max(batchSize, 1);
+        this.idBlock = Math.max(idBlock, 1);
+        this.commitTimeout = Math.max(commitTimeout, 1);
+        this.queue = new LinkedBlockingQueue<>(Math.max(queueCapacity, 1));
+        if (mode == DanmuWriteMode.DIRECT) {
+            this.flusher = null;
+            return;
+        }
+        this.flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "danmu-writer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        flusher.scheduleWithFixedDelay(this::flushQuietly, flushInterval, Math.max(flushInterval, 1), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return whether sendDanmu queues its danmu here instead of inserting it itself
+     */
+    boolean isBuffered() {
+        return mode != DanmuWriteMode.DIRECT;
+    }
+
+    /**
+     * @return a danmu_id nobody else will use, reserving the next block on {@code conn} when the
+     * current one is used up
+     */
+    synchronized long reserveId(Connection conn) throws SQLException {
+        if (reservedIds.isEmpty()) {
+            try (PreparedStatement stmt = conn.prepareStatement(RESERVE_SQL)) {
+                stmt.setInt(1, idBlock);
+                try (ResultSet rs = stmt.executeQuery()) {
+                    while (rs.next()) {
+                        reservedIds.add(rs.getLong(1));
+                    }
+                }
+            }
+        }
+        return reservedIds.remove();
+    }
+
+    /**
+     * Queues a validated danmu under the id {@link #reserveId} handed out. Blocks while the
+     * queue is full, and in {@link DanmuWriteMode#GROUP_COMMIT} until the row is committed. A row
+     * still queued after {@code sustc.danmu-write.commit-timeout-ms} is taken back, one already
+     * being written is waited for, its flush always completes it.
+     *
+     * @return whether the danmu was accepted, false when its commit failed or it was taken back
+     */
+    boolean write(long danmuId, int vid, long mid, float time, String content) {
+        Row row = new Row(danmuId, vid, mid, time, content, mode == DanmuWriteMode.GROUP_COMMIT);
+        try {
+            queue.put(row);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        if (queue.size() >= batchSize && flushRequested.compareAndSet(false, true)) {
+            flusher.execute(this::flushQuietly);
+        }
+        if (row.committed == null) {
+            return true;
+        }
+        try {
+            return row.committed.get(commitTimeout, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | TimeoutException e) {
+            log.warn("Danmu {} not committed after {} ms: {}", danmuId, commitTimeout, e.toString());
+        }
+        // a row still queued is never written
+        if (queue.remove(row)) {
+            row.done(false);
+            return false;
+        }
+        // the row is in a batch that may yet commit, its outcome is the answer
+        return row.committed.join();
+    }
+
+    /**
+     * Writes everything queued so far before returning.
+     */
+    void flush() {
+        if (!isBuffered()) {
+            return;
+        }
+        synchronized (queue) {
+            flushRequested.set(false);
+            List<Row> batch = new ArrayList<>(Math.min(batchSize, 1024));
+            while (queue.drainTo(batch, batchSize) > 0) {
+                try {
+                    write(batch);
+                } finally {
+                    // whatever went wrong, nobody keeps waiting for a drained row
+                    batch.forEach(row -> row.done(false));
+                    batch.clear();
+                }
+            }
+        }
+    }
+
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (RuntimeException e) {
+            log.error("Danmu flush failed", e);
+        }
+    }
+
+    private void write(List<Row> batch) {
+        Set<Long> inserted;
+        try {
+            inserted = insert(batch);
+        } catch (SQLException e) {
+            if (batch.size() == 1) {
+                log.error("Could not write danmu {}", batch.get(0).danmuId, e);
+                batch.get(0).done(false);
+                return;
+            }
+            // one bad row must not take the others with it
+            log.warn("Group commit of {} danmu failed, writing them one by one: {}", batch.size(), e.getMessage());
+            for (Row row : batch) {
+                write(List.of(row));
+            }
+            return;
+        }
+        for (Row row : batch) {
+            if (!inserted.contains(row.danmuId)) {
+                // the video or the sender was deleted after the danmu was queued
+                row.done(false);
+                continue;
+            }
+            timelines.added(row.vid, row.danmuId, row.time, row.content);
+            row.done(true);
+        }
+    }
+
+    /**
+     * @return the ids of the danmu written, the others lost their video or sender
+     */
+    private Set<Long> insert(List<Row> batch) throws SQLException {
+        int n = batch.size();
+        Long[] ids = new Long[n];
+        Integer[] vids = new Integer[n];
+        Long[] mids = new Long[n];
+        Double[] times = new Double[n];
+        String[] contents = new String[n];
+        Timestamp[] postTimes = new Timestamp[n];
+        for (int i = 0; i < n; i++) {
+            Row row = batch.get(i);
+            ids[i] = row.danmuId;
+            vids[i] = row.vid;
+            mids[i] = row.mid;
+            times[i] = row.time;
+            contents[i] = row.content;
+            postTimes[i] = row.postTime;
+        }
+        Set<Long> inserted = new HashSet<>(n * 2);
+        try (Connection conn = dataSource.getConnection();
+             PreparedStatement stmt = conn.prepareStatement(INSERT_SQL)) {
+            stmt.setArray(1, conn.createArrayOf("int8", ids));
+            stmt.setArray(2, conn.createArrayOf("int4", vids));
+            stmt.setArray(3, conn.createArrayOf("int8", mids));
+            stmt.setArray(4, conn.createArrayOf("float8", times));
+            stmt.setArray(5, conn.createArrayOf("varchar", contents));
+            stmt.setArray(6, conn.createArrayOf("timestamp", postTimes));
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    inserted.add(rs.getLong(1));
+                }
+            }
+        }
+        log.debug("Group commit wrote {} of {} danmu", inserted.size(), n);
+        return inserted;
+    }
+
+    /**
+     * Drops the queued danmu and the reserved ids, used when the danmu table is reloaded or
+     * emptied and the sequence starts over. Callers waiting for a dropped danmu get a failure.
+     */
+    void discard() {
+        List<Row> dropped = new ArrayList<>();
+        // waits for a flush in progress, its rows would land in the emptied table otherwise
+        synchronized (queue) {
+            synchronized (this) {
+                reservedIds.clear();
+            }
+            queue.drainTo(dropped);
+        }
+        dropped.forEach(row -> row.done(false));
+    }
+
+    @Override
+    public void destroy() {
+        if (flusher != null) {
+            flusher.shutdown();
+            flush();
+        }
+    }
+}
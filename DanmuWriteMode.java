@@ -0,0 +1,24 @@
+package io.sustc.service.impl;
+
+/**
+ * How sendDanmu writes a validated danmu, see {@link DanmuWriteBuffer}.
+ */
+public enum DanmuWriteMode {
+
+    /**
+     * One INSERT and one commit per danmu inside the call, the original behaviour.
+     */
+    DIRECT,
+
+    /**
+     * The danmu is queued and written by the next group commit, sendDanmu returns once that
+     * commit succeeded. Durable like DIRECT, the latency grows by up to one flush interval.
+     */
+    GROUP_COMMIT,
+
+    /**
+     * The danmu is queued and sendDanmu returns its id right away. Queued danmu are lost if the
+     * process dies before the next flush, and other calls see a danmu only once it is flushed.
+     */
+    WRITE_BEHIND
+}
@@ -6,12 +6,17 @@ import io.sustc.dto.VideoRecord;
 import io.sustc.service.DatabaseService;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
 import javax.sql.DataSource;
 import java.sql.*;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 
 @Service
 @Slf4j
@@ -20,6 +25,80 @@ public class DatabaseServiceImpl implements DatabaseService {
     @Autowired
     private DataSource dataSource;
 
+    @Autowired
+    private VideoKeys videoKeys;
+
+    @Autowired
+    private IdentityResolver identities;
+
+    @Autowired
+    private ExistenceFilter existence;
+
+    @Autowired
+    private DanmuTimelineIndex timelines;
+
+    @Autowired
+    private DanmuWriteBuffer writes;
+
+    @Autowired
+    private HotspotHistogram hotspots;
+
+    // Extra receivers of the per-table import statistics, besides the log
+    @Autowired(required = false)
+    private List<ImportListener> importListeners = List.of();
+
+    @Value("${sustc.import.mode:COPY}")
+    private ImportMode importMode;
+
+    // Keep it at or below the connection pool size, each running table holds one connection
+    @Value("${sustc.import.parallelism:#{T(java.lang.Runtime).getRuntime().availableProcessors()}}")
+    private int importParallelism;
+
+    @Value("${sustc.import.chunk-rows:10000}")
+    private int importChunkRows;
+
+    @Value("${sustc.import.chunk-bytes:4194304}")
+    private int importChunkBytes;
+
+    // 0 = one transaction per table
+    @Value("${sustc.import.commit-every:0}")
+    private long importCommitEvery;
+
+    // Load into bare tables, then build keys and indexes in parallel and ANALYZE
+    @Value("${sustc.import.defer-indexes:false}")
+    private boolean deferIndexes;
+
+    // COPY mode only: encode rows on this many fork-join threads ahead of each table's writer, 0 = on the writer
+    @Value("${sustc.import.encode-parallelism:0}")
+    private int encodeParallelism;
+
+    // Records per encoded range, a range is also the smallest unit between commits
+    @Value("${sustc.import.encode-range:1000}")
+    private int encodeRange;
+
+    // Checkpoint every committed chunk in import_progress and continue from there on the next run
+    @Value("${sustc.import.resumable:false}")
+    private boolean resumableImport;
+
+    // Load into UNLOGGED *_staging tables and swap them in at the end, readers keep the old data until then
+    @Value("${sustc.import.staged:false}")
+    private boolean stagedImport;
+
+    // Write the staging tables to the WAL before the swap, an unlogged table comes back empty after a crash
+    @Value("${sustc.import.staged-logged:true}")
+    private boolean stagedLogged;
+
+    // Seconds between progress reports while an import runs, 0 turns them off
+    @Value("${sustc.import.progress-interval:10}")
+    private long progressInterval;
+
+    // LEGACY is the old per-table loop, kept to compare timings against
+    @Value("${sustc.truncate.mode:FAST}")
+    private TruncateMode truncateMode;
+
+    // Created by other code paths, they only need to go away on truncate
+    private static final String[] WORK_TABLES = {"auth_following", "temp_following_1", "import_progress"};
+
     @Override
     public List<Integer> getGroupMembers() {
 
@@ -33,99 +112,247 @@ public class DatabaseServiceImpl implements DatabaseService {
             List<VideoRecord> videoRecords
 
     ) {
-        try (Connection conn = dataSource.getConnection()) {
-
+        long start = System.nanoTime();
+        videoKeys.clear();
+        identities.clear();
+        existence.clear();
+        timelines.clear();
+        hotspots.clear();
+        writes.discard();
+        try (ImportRun run = startImport(encodeParallelism > 0)) {
+            // Every table loads on its own connection
+            ImportScheduler scheduler = new ImportScheduler();
+            addTableLoads(scheduler, TableLoad.danmu(TableLoad.videoIds(videoRecords)), danmuRecords, run);
+            addTableLoads(scheduler, TableLoad.USER, userRecords, run);
+            addTableLoads(scheduler, TableLoad.VIDEO, videoRecords, run);
+            scheduler.run(dataSource, importParallelism);
+
+            finishImport(start, run);
+        } catch (SQLException e) {
+            handleImportException(e);
+        }
+    }
 
-       create_danmu_table(conn, danmuRecords);
-        create_danmu_like_table(conn, danmuRecords);
-        create_user_table(conn, userRecords);
-        create_and_insert_qq_wechat_tables(conn, userRecords);
-        create_following_table(conn, userRecords);
-         create_video_table(conn, videoRecords);
-          create_video_like_table(conn, videoRecords);
-          create_video_coin_table(conn, videoRecords);
-         create_video_favorite_table(conn, videoRecords);
-         create_viewer_duration_table(conn, videoRecords);
-          create_and_insert_mid_max_table(conn);
+    /**
+     * Streaming variant of {@link #importData(List, List, List)}. Each record is written to
+     * every table derived from it as soon as it is read, nothing is collected in between, so
+     * memory stays flat whatever the size of the dataset. The iterators are drained one after
+     * another and each table of the current iterator holds its own connection, which is at
+     * most five connections at a time (video records feed five tables). Danmu records are
+     * mapped to vids collected while the videos stream by, so the danmu iterator goes last.
+     */
+    public void importData(
+            Iterator<DanmuRecord> danmuRecords,
+            Iterator<UserRecord> userRecords,
+            Iterator<VideoRecord> videoRecords
+    ) {
+        long start = System.nanoTime();
+        videoKeys.clear();
+        identities.clear();
+        existence.clear();
+        timelines.clear();
+        hotspots.clear();
+        writes.discard();
+        try (ImportRun run = startImport(false)) {
+            Map<String, Integer> videoIds = new HashMap<>();
+            streamRecords(TableLoad.USER, userRecords, run);
+            streamRecords(TableLoad.VIDEO, new Iterator<VideoRecord>() {
+                private int vid;
+
+                @Override
+                public boolean hasNext() {
+                    return videoRecords.hasNext();
+                }
 
+                @Override
+                public VideoRecord next() {
+                    VideoRecord videoRecord = videoRecords.next();
+                    videoIds.put(videoRecord.getBv(), ++vid);
+                    return videoRecord;
+                }
+            }, run);
+            streamRecords(TableLoad.danmu(videoIds), danmuRecords, run);
 
+            finishImport(start, run);
         } catch (SQLException e) {
-            System.err.println("SQL State: " + e.getSQLState());
-            System.err.println("Error Code: " + e.getErrorCode());
-            System.err.println("Message: " + e.getMessage());
-            System.err.println("Error Location: " + e.getStackTrace()[0]);
-            throw new RuntimeException("Failed to import data.", e);
+            handleImportException(e);
         }
     }
 
-    private void create_danmu_table(Connection conn, List<DanmuRecord> danmuRecords) throws SQLException {
-        try (PreparedStatement stmt = conn.prepareStatement(
-                "CREATE TABLE IF NOT EXISTS danmu (" +
-                        "danmu_id SERIAL PRIMARY KEY," +  // 新增列 danmu_id，并将其设为唯一主键
-                        "bv VARCHAR ," +
-                        "mid BIGINT," +
-                        "time FLOAT," +
-                        "content VARCHAR," +
-                        "post_time TIMESTAMP," +
-                        "test BIGINT" +
-                        ")"
-        )) {
-            stmt.executeUpdate();
+    private ImportRun startImport(boolean parallelEncoding) throws SQLException {
+        ImportProgress progress = loadProgress();
+        ParallelEncoder encoder = parallelEncoding ? new ParallelEncoder(encodeParallelism, encodeRange) : null;
+        return new ImportRun(progress, encoder, new ImportMonitor(importListeners, progressInterval));
+    }
+
+    private ImportProgress loadProgress() throws SQLException {
+        if (resumableImport && stagedImport) {
+            log.warn("sustc.import.resumable is ignored for staged imports, the staging tables are always reloaded");
+        }
+        return resumable() ? ImportProgress.load(dataSource) : ImportProgress.DISABLED;
+    }
+
+    private boolean resumable() {
+        return resumableImport && !stagedImport;
+    }
+
+    private <T> void addTableLoads(ImportScheduler scheduler, List<TableLoad<T>> loads, List<T> records,
+                                   ImportRun run) {
+        for (TableLoad<T> load : loads) {
+            scheduler.add(load.table.tableName, conn -> loadTable(conn, load, records, run));
+        }
+    }
 
-            try (PreparedStatement insertStmt = conn.prepareStatement(
-                    "INSERT INTO danmu (bv, mid, time, content, post_time) VALUES (?, ?, ?, ?, ?)"
-            )) {
-                for (DanmuRecord danmuRecord : danmuRecords) {
-                    insertStmt.setString(1, danmuRecord.getBv());
-                    insertStmt.setLong(2, danmuRecord.getMid());
-                    insertStmt.setFloat(3, danmuRecord.getTime());
-                    insertStmt.setString(4, danmuRecord.getContent());
-                    insertStmt.setTimestamp(5, danmuRecord.getPostTime());
-                    insertStmt.addBatch();
+    private <T> void loadTable(Connection conn, TableLoad<T> load, List<T> records,
+                               ImportRun run) throws SQLException {
+        if (skipFinished(load.table, run.progress)) {
+            return;
+        }
+        createTable(conn, load.table);
+
+        long ordinal = Math.min(run.progress.committedRecords(load.table), records.size());
+        try (ImportSink sink = openSink(conn, load.table, load.columns, run)) {
+            if (run.encoder != null && sink instanceof CopyImportSink) {
+                run.encoder.write((CopyImportSink) sink, load, records, (int) ordinal);
+            } else {
+                for (T record : records.subList((int) ordinal, records.size())) {
+                    load.writer.write(sink, record, ++ordinal);
+                    sink.recordDone(ordinal);
                 }
-                insertStmt.executeBatch();
             }
+            sink.finish();
         }
     }
 
+    private <T> void streamRecords(List<TableLoad<T>> loads, Iterator<T> records,
+                                   ImportRun run) throws SQLException {
+        List<AutoCloseable> resources = new ArrayList<>();
+        try {
+            List<TableLoad<T>> activeLoads = new ArrayList<>();
+            List<ImportSink> sinks = new ArrayList<>();
+            List<Long> resumeAfter = new ArrayList<>();
+            // A connection runs one COPY at a time, so every table gets its own
+            for (TableLoad<T> load : loads) {
+                if (skipFinished(load.table, run.progress)) {
+                    continue;
+                }
+                Connection conn = dataSource.getConnection();
+                resources.add(conn);
+                createTable(conn, load.table);
+                ImportSink sink = openSink(conn, load.table, load.columns, run);
+                resources.add(sink);
+                activeLoads.add(load);
+                sinks.add(sink);
+                resumeAfter.add(run.progress.committedRecords(load.table));
+            }
 
-    private void create_danmu_like_table(Connection conn, List<DanmuRecord> danmuRecords) throws SQLException {
-        try (PreparedStatement stmt = conn.prepareStatement(
-                "CREATE TABLE IF NOT EXISTS danmu_like (" +
-                        "danmu_id BIGINT," +
-                        "liked_by BIGINT," +
-                        "bv VARCHAR," +
-                        "CONSTRAINT danmu_like_pk PRIMARY KEY (danmu_id, liked_by)" +
-                        ")"
-        )) {
-            stmt.executeUpdate();
-
-            try (PreparedStatement insertStmt = conn.prepareStatement(
-                    "INSERT INTO danmu_like (danmu_id, liked_by,bv) VALUES (?, ?,?)"
-            )) {
-                long danmuIdCounter = 1;  // 初始的 danmu_id 值
-
-                for (DanmuRecord danmuRecord : danmuRecords) {
-                    for (Long likedBy : danmuRecord.getLikedBy()) {
-                        insertStmt.setLong(1, danmuIdCounter);
-                        insertStmt.setLong(2, likedBy);
-                        insertStmt.setString(3, danmuRecord.getBv());
-                        insertStmt.addBatch();
+            long ordinal = 0;
+            while (records.hasNext()) {
+                T record = records.next();
+                ordinal++;
+                for (int i = 0; i < sinks.size(); i++) {
+                    if (ordinal > resumeAfter.get(i)) {
+                        activeLoads.get(i).writer.write(sinks.get(i), record, ordinal);
+                        sinks.get(i).recordDone(ordinal);
                     }
-                    danmuIdCounter++;
                 }
-                insertStmt.executeBatch();
             }
+            for (ImportSink sink : sinks) {
+                sink.finish();
+            }
+        } finally {
+            closeAll(resources);
+        }
+    }
+
+    private boolean skipFinished(ImportTable table, ImportProgress progress) {
+        if (progress.isFinished(table)) {
+            log.info("Skipping {}, an earlier import already finished it", table.tableName);
+            return true;
+        }
+        long committed = progress.committedRecords(table);
+        if (committed > 0) {
+            log.info("Resuming {} after input record {}", table.tableName, committed);
+        }
+        return false;
+    }
+
+    private static void closeAll(List<AutoCloseable> resources) throws SQLException {
+        SQLException failure = null;
+        // sinks before their connections
+        for (int i = resources.size() - 1; i >= 0; i--) {
+            try {
+                resources.get(i).close();
+            } catch (Exception e) {
+                if (failure == null) {
+                    failure = e instanceof SQLException ? (SQLException) e : new SQLException(e);
+                } else {
+                    failure.addSuppressed(e);
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private void finishImport(long start, ImportRun run) throws SQLException {
+        long loaded = System.nanoTime();
+        log.info("Import load phase finished in {} ms with parallelism {}",
+                (loaded - start) / 1_000_000, importParallelism);
+
+        if (stagedImport || deferIndexes) {
+            String suffix = stagedImport ? ImportTable.STAGING : "";
+            buildIndexes(suffix);
+            long indexed = System.nanoTime();
+            log.info("Import index phase finished in {} ms", (indexed - loaded) / 1_000_000);
+
+            analyzeTables(suffix);
+            long analyzed = System.nanoTime();
+            log.info("Import analyze phase finished in {} ms", (analyzed - indexed) / 1_000_000);
+
+            if (stagedImport) {
+                swapTables();
+                log.info("Import swap phase finished in {} ms", (System.nanoTime() - analyzed) / 1_000_000);
+            }
+        }
+
+        // vids and cached users change with every import, and mid_max reads the final tables
+        videoKeys.clear();
+        identities.clear();
+        timelines.clear();
+        hotspots.clear();
+        try (Connection conn = dataSource.getConnection()) {
+            create_and_insert_mid_max_table(conn);
         }
+        // the data is complete, a later import must not resume from this one's checkpoints
+        run.progress.reset(dataSource);
+        // ids reserved before the danmu sequence was moved past the imported rows are void
+        writes.discard();
+        // the filters were dropped when the import started, nothing is rejected until a build succeeds
+        existence.rebuildQuietly();
+        // videos are counted on demand until a build succeeds
+        hotspots.rebuildQuietly();
+        log.info("Import finished in {} ms", (System.nanoTime() - start) / 1_000_000);
+        run.monitor.importFinished();
     }
 
+    private static void handleImportException(SQLException e) {
+        System.err.println("SQL State: " + e.getSQLState());
+        System.err.println("Error Code: " + e.getErrorCode());
+        System.err.println("Message: " + e.getMessage());
+        System.err.println("Error Location: " + e.getStackTrace()[0]);
+        throw new RuntimeException("Failed to import data.", e);
+    }
 
     private static void create_and_insert_mid_max_table(Connection connection) throws SQLException {
         String create_table_sql = "CREATE TABLE IF NOT EXISTS mid_max (" +
                 "mid_name VARCHAR(255) PRIMARY KEY," +
                 "mid_value BIGINT);";
 
-        String insert_data_sql = "INSERT INTO mid_max (mid_name, mid_value) VALUES (?, ?)";
+        // Upsert, a resumed or repeated import finds the rows already there
+        String insert_data_sql = "INSERT INTO mid_max (mid_name, mid_value) VALUES (?, ?) " +
+                "ON CONFLICT (mid_name) DO UPDATE SET mid_value = EXCLUDED.mid_value";
 
         long max_mid_value = 0;
         long max_danmu_mid_value = 0;
@@ -151,6 +378,22 @@ public class DatabaseServiceImpl implements DatabaseService {
             }
         }
 
+        // The importer writes danmu_id itself, move the SERIAL sequence past it for sendDanmu
+        String reset_danmu_sequence_sql = "SELECT setval(pg_get_serial_sequence('danmu', 'danmu_id'), " +
+                "COALESCE(MAX(danmu_id), 0) + 1, false) FROM danmu";
+
+        try (PreparedStatement preparedStatement = connection.prepareStatement(reset_danmu_sequence_sql)) {
+            preparedStatement.executeQuery();
+        }
+
+        // Same for vid, postVideo takes the next value
+        String reset_video_sequence_sql = "SELECT setval(pg_get_serial_sequence('video', 'vid'), " +
+                "COALESCE(MAX(vid), 0) + 1, false) FROM video";
+
+        try (PreparedStatement preparedStatement = connection.prepareStatement(reset_video_sequence_sql)) {
+            preparedStatement.executeQuery();
+        }
+
         // Get max mid value from video table
         String select_max_video_mid_sql = "SELECT 1";
 
@@ -182,289 +425,172 @@ public class DatabaseServiceImpl implements DatabaseService {
         }
     }
 
-    private void create_user_table(Connection conn, List<UserRecord> userRecords) throws SQLException {
-        try (PreparedStatement stmt = conn.prepareStatement(
-                "CREATE TABLE IF NOT EXISTS user_basic (" +
-                        "mid BIGINT PRIMARY KEY," +
-                        "name VARCHAR," +
-                        "sex VARCHAR," +
-                        "birthday VARCHAR," +
-                        "level INT," +
-                        "coin INT," +
-                        "sign VARCHAR," +
-                        "identity_s  VARCHAR," +
-                        "password VARCHAR," +
-                        "qq VARCHAR," +
-                        "wechat VARCHAR" +
-                        ")"
-        )) {
-            stmt.executeUpdate();
-
-            try (PreparedStatement insertStmt = conn.prepareStatement(
-                    "INSERT INTO user_basic (mid, name, sex, birthday, level, coin, sign, identity_s, password, qq, wechat) " +
-                            "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)"
-            )) {
-                for (UserRecord userRecord : userRecords) {
-                    insertStmt.setLong(1, userRecord.getMid());
-                    insertStmt.setString(2, userRecord.getName());
-                    insertStmt.setString(3, userRecord.getSex());
-                    insertStmt.setString(4, userRecord.getBirthday());
-                    insertStmt.setInt(5, userRecord.getLevel());
-                    insertStmt.setInt(6, userRecord.getCoin());
-                    insertStmt.setString(7, userRecord.getSign());
-                    insertStmt.setString(8, String.valueOf(userRecord.getIdentity()));
-                    insertStmt.setString(9, userRecord.getPassword());
-                    insertStmt.setString(10, userRecord.getQq());
-                    insertStmt.setString(11, userRecord.getWechat());
-                    insertStmt.addBatch();
+    private void createTable(Connection conn, ImportTable table) throws SQLException {
+        try (Statement stmt = conn.createStatement()) {
+            if (stagedImport) {
+                for (String sql : table.createStagingSql()) {
+                    stmt.executeUpdate(sql);
                 }
-                insertStmt.executeBatch();
+                return;
             }
-        }
-    }
-
-    private void create_and_insert_qq_wechat_tables(Connection conn, List<UserRecord> userRecords) throws SQLException {
-        // Create QQ table
-        try (PreparedStatement qqTableStmt = conn.prepareStatement(
-                "CREATE TABLE IF NOT EXISTS user_qq (" +
-                        "mid BIGINT PRIMARY KEY," +
-                        "qq VARCHAR" +
-                        ")"
-        )) {
-            qqTableStmt.executeUpdate();
-        }
-
-        // Create WeChat table
-        try (PreparedStatement wechatTableStmt = conn.prepareStatement(
-                "CREATE TABLE IF NOT EXISTS user_wechat (" +
-                        "mid BIGINT PRIMARY KEY," +
-                        "wechat VARCHAR" +
-                        ")"
-        )) {
-            wechatTableStmt.executeUpdate();
-        }
-
-        // Insert QQ and WeChat data
-        try (PreparedStatement qqStmt = conn.prepareStatement(
-                "INSERT INTO user_qq (mid, qq) VALUES (?, ?)"
-        );
-             PreparedStatement wechatStmt = conn.prepareStatement(
-                     "INSERT INTO user_wechat (mid, wechat) VALUES (?, ?)"
-             )) {
-
-            for (UserRecord userRecord : userRecords) {
-                long mid = userRecord.getMid();
-                String qq = userRecord.getQq();
-                String wechat = userRecord.getWechat();
-
-                // Insert non-empty QQ
-                if (qq != null && !qq.isEmpty()) {
-                    qqStmt.setLong(1, mid);
-                    qqStmt.setString(2, qq);
-                    qqStmt.addBatch();
-                }
-
-                // Insert non-empty WeChat
-                if (wechat != null && !wechat.isEmpty()) {
-                    wechatStmt.setLong(1, mid);
-                    wechatStmt.setString(2, wechat);
-                    wechatStmt.addBatch();
+            stmt.executeUpdate(table.createSql(!deferIndexes));
+            if (deferIndexes) {
+                // Tables kept from an earlier import still carry their keys, drop them so the load skips index upkeep
+                for (String sql : table.dropIndexSql()) {
+                    stmt.executeUpdate(sql);
                 }
             }
-
-            qqStmt.executeBatch();
-            wechatStmt.executeBatch();
         }
     }
 
-    public void create_viewer_duration_table(Connection conn, List<VideoRecord> videoRecords) throws SQLException {
-        try (PreparedStatement stmt = conn.prepareStatement(
-                "CREATE TABLE IF NOT EXISTS viewer_duration (" +
-                        "bv VARCHAR," +
-                        "viewer_mid BIGINT," +
-                        "view_time FLOAT," +
-                        "PRIMARY KEY (bv, viewer_mid, view_time)" +
-                        ")"
-
-        )) {
-            stmt.executeUpdate();
-
-
-            try (PreparedStatement insertStmt = conn.prepareStatement(
-                    "INSERT INTO viewer_duration (bv, viewer_mid, view_time) VALUES (?, ?, ?)"
-            )) {
-                for (VideoRecord videoRecord : videoRecords) {
-                    String bv = videoRecord.getBv();
-                    long[] viewerMids = videoRecord.getViewerMids();
-                    float[] viewTimes = videoRecord.getViewTime();
+    private ImportSink openSink(Connection conn, ImportTable table, String columns,
+                                ImportRun run) throws SQLException {
+        // Checkpoints need chunk commits, so a resumable import always commits along the way
+        long commitEvery = resumable() && importCommitEvery <= 0 ? 100_000 : importCommitEvery;
+        ImportOptions options = new ImportOptions(importMode, importChunkRows, importChunkBytes, commitEvery);
+        String target = stagedImport ? table.tableName + ImportTable.STAGING : table.tableName;
+        return ImportSink.open(conn, options, target, columns, run.progress.checkpoint(table),
+                run.monitor.table(table.tableName));
+    }
 
-                    for (int i = 0; i < viewerMids.length; i++) {
-                        insertStmt.setString(1, bv);
-                        insertStmt.setLong(2, viewerMids[i]);
-                        insertStmt.setFloat(3, viewTimes[i]);
-                        insertStmt.addBatch();
+    private void buildIndexes(String suffix) throws SQLException {
+        ImportScheduler scheduler = new ImportScheduler();
+        for (ImportTable table : ImportTable.values()) {
+            // ADD PRIMARY KEY locks the whole table, so one step per table and the tables run side by side
+            scheduler.add(table.tableName, conn -> {
+                try (Statement stmt = conn.createStatement()) {
+                    if (stagedImport && stagedLogged) {
+                        // SET LOGGED rewrites the table and its indexes, so it goes before the indexes exist
+                        stmt.executeUpdate("ALTER TABLE " + table.tableName + suffix + " SET LOGGED");
+                    }
+                    if (!hasConstraint(conn, table.primaryKeyName(suffix))) {
+                        stmt.executeUpdate(table.addPrimaryKeySql(suffix));
+                    }
+                    for (String sql : table.createIndexSql(suffix)) {
+                        stmt.executeUpdate(sql);
                     }
                 }
-                insertStmt.executeBatch();
-            }
+            });
         }
+        scheduler.run(dataSource, importParallelism);
     }
 
-    private void create_following_table(Connection conn, List<UserRecord> userRecords) throws SQLException {
-        try (PreparedStatement stmt = conn.prepareStatement(
-                "CREATE TABLE IF NOT EXISTS following (" +
-                        "user_mid BIGINT," +
-                        "following BIGINT," +
-                        "CONSTRAINT following_pk PRIMARY KEY (user_mid, following)" +
-                        ")"
-        )) {
-            stmt.executeUpdate();
-
-            try (PreparedStatement insertStmt = conn.prepareStatement(
-                    "INSERT INTO following (user_mid, following) VALUES (?, ?)"
-            )) {
-                for (UserRecord userRecord : userRecords) {
-
-                    long userMid = userRecord.getMid();
-                    for (Long following : userRecord.getFollowing()) {
+    private void analyzeTables(String suffix) throws SQLException {
+        ImportScheduler scheduler = new ImportScheduler();
+        for (ImportTable table : ImportTable.values()) {
+            scheduler.add(table.tableName, conn -> {
+                try (Statement stmt = conn.createStatement()) {
+                    stmt.executeUpdate("ANALYZE " + table.tableName + suffix);
+                }
+            });
+        }
+        scheduler.run(dataSource, importParallelism);
+    }
 
-                        insertStmt.setLong(1, userMid);
-                        insertStmt.setLong(2, following);
-                        insertStmt.addBatch();
+    /**
+     * Replaces every live table by its loaded and indexed staging copy in a single
+     * transaction. Readers block only for the renames and then see the new data.
+     */
+    private void swapTables() throws SQLException {
+        try (Connection conn = dataSource.getConnection()) {
+            inTransaction(conn, c -> {
+                try (Statement stmt = c.createStatement()) {
+                    for (ImportTable table : ImportTable.values()) {
+                        for (String sql : table.swapSql()) {
+                            stmt.executeUpdate(sql);
+                        }
                     }
                 }
-                insertStmt.executeBatch();
-            }
+            });
         }
     }
 
-    private void create_video_table(Connection conn, List<VideoRecord> videoRecords) throws SQLException {
-        try (PreparedStatement stmt = conn.prepareStatement(
-                "CREATE TABLE IF NOT EXISTS video (" +
-                        "bv VARCHAR," +
-                        "title VARCHAR," +
-                        "owner_mid BIGINT," +
-                        "owner_name VARCHAR," +
-                        "commit_time TIMESTAMP," +
-                        "review_time TIMESTAMP," +
-                        "public_time TIMESTAMP," +
-                        "duration FLOAT," +
-                        "description VARCHAR," +
-                        "reviewer BIGINT DEFAULT 0," +
-                        "number_of_viewer BIGINT DEFAULT 0," +
-                        "CONSTRAINT video_pk PRIMARY KEY (bv)" +
-                        ")"
-        )) {
-            stmt.executeUpdate();
+    private static void inTransaction(Connection conn, ImportScheduler.ImportTask task) throws SQLException {
+        conn.setAutoCommit(false);
+        try {
+            task.run(conn);
+            conn.commit();
+        } catch (SQLException e) {
+            conn.rollback();
+            throw e;
+        } finally {
+            conn.setAutoCommit(true);
+        }
+    }
 
-            try (PreparedStatement insertStmt = conn.prepareStatement(
-                    "INSERT INTO video (bv, title, owner_mid, owner_name, commit_time, review_time, public_time, duration, " +
-                            "description, reviewer,number_of_viewer) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?,?)"
-            )) {
-                for (VideoRecord videoRecord : videoRecords) {
-                    insertStmt.setString(1, videoRecord.getBv());
-                    insertStmt.setString(2, videoRecord.getTitle());
-                    insertStmt.setLong(3, videoRecord.getOwnerMid());
-                    insertStmt.setString(4, videoRecord.getOwnerName());
-                    insertStmt.setTimestamp(5, videoRecord.getCommitTime());
-                    insertStmt.setTimestamp(6, videoRecord.getReviewTime());
-                    insertStmt.setTimestamp(7, videoRecord.getPublicTime());
-                    insertStmt.setFloat(8, videoRecord.getDuration());
-                    insertStmt.setString(9, videoRecord.getDescription());
-                    insertStmt.setLong(10, videoRecord.getReviewer());
-                    insertStmt.setLong(11, videoRecord.getViewerMids().length);
-                    insertStmt.addBatch();
-                }
-                insertStmt.executeBatch();
+    private static boolean hasConstraint(Connection conn, String name) throws SQLException {
+        try (PreparedStatement stmt = conn.prepareStatement("SELECT 1 FROM pg_constraint WHERE conname = ?")) {
+            stmt.setString(1, name);
+            try (ResultSet rs = stmt.executeQuery()) {
+                return rs.next();
             }
         }
     }
 
-    private void create_video_like_table(Connection conn, List<VideoRecord> videoRecords) throws SQLException {
-        try (PreparedStatement stmt = conn.prepareStatement(
-                "CREATE TABLE IF NOT EXISTS video_like (" +
-                        "video_bv VARCHAR," +
-                        "liked_by BIGINT," +
-                        "CONSTRAINT video_like_pk PRIMARY KEY (video_bv, liked_by)" +
-                        ")"
-        )) {
-            stmt.executeUpdate();
-
-            for (VideoRecord videoRecord : videoRecords) {
-                try (PreparedStatement insertStmt = conn.prepareStatement(
-                        "INSERT INTO video_like (video_bv, liked_by) VALUES (?, ?)"
-                )) {
-                    String bv = videoRecord.getBv();
-                    for (Long likedBy : videoRecord.getLike()) {
-                        insertStmt.setString(1, bv);
-                        insertStmt.setLong(2, likedBy);
-                        insertStmt.addBatch();
-                    }
-                    insertStmt.executeBatch();
-                }
+    @Override
+    public void truncate() {
+        long start = System.nanoTime();
+        videoKeys.clear();
+        identities.clear();
+        timelines.clear();
+        hotspots.clear();
+        writes.discard();
+        try (Connection conn = dataSource.getConnection()) {
+            switch (truncateMode) {
+                case LEGACY:
+                    truncateEachTable(conn);
+                    break;
+                case DROP_SCHEMA:
+                    inTransaction(conn, DatabaseServiceImpl::recreateSchema);
+                    break;
+                default:
+                    inTransaction(conn, DatabaseServiceImpl::truncateKnownTables);
             }
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
         }
+        // the danmu_id sequence starts over, ids reserved meanwhile are void too
+        writes.discard();
+        // a stale filter only lets misses through, so a failed rebuild is not fatal here
+        existence.rebuildQuietly();
+        hotspots.rebuildQuietly();
+        log.info("Truncate ({}) finished in {} ms", truncateMode, (System.nanoTime() - start) / 1_000_000);
     }
 
-    private void create_video_coin_table(Connection conn, List<VideoRecord> videoRecords) throws SQLException {
-        try (PreparedStatement stmt = conn.prepareStatement(
-                "CREATE TABLE IF NOT EXISTS video_coin (" +
-                        "video_bv VARCHAR," +
-                        "coin_by BIGINT," +
-                        "CONSTRAINT video_coin_pk PRIMARY KEY (video_bv, coin_by)" +
-                        ")"
-        )) {
-            stmt.executeUpdate();
-
-            try (PreparedStatement insertStmt = conn.prepareStatement(
-                    "INSERT INTO video_coin (video_bv, coin_by) VALUES (?, ?)"
-            )) {
-                for (VideoRecord videoRecord : videoRecords) {
-                    String bv = videoRecord.getBv();
-                    for (Long coinBy : videoRecord.getCoin()) {
-                        insertStmt.setString(1, bv);
-                        insertStmt.setLong(2, coinBy);
-                        insertStmt.addBatch();
-                    }
-                }
-                insertStmt.executeBatch();
+    private static void truncateKnownTables(Connection conn) throws SQLException {
+        try (Statement stmt = conn.createStatement()) {
+            StringBuilder tables = new StringBuilder();
+            for (ImportTable table : ImportTable.values()) {
+                // TRUNCATE fails on a missing table, create whatever an earlier import did not
+                stmt.executeUpdate(table.createSql(true));
+                stmt.executeUpdate("DROP TABLE IF EXISTS " + table.tableName + ImportTable.STAGING);
+                tables.append(tables.length() == 0 ? "" : ", ").append(table.tableName);
+            }
+            for (String table : WORK_TABLES) {
+                stmt.executeUpdate("DROP TABLE IF EXISTS " + table);
             }
+            // RESTART IDENTITY also resets the danmu_id and vid sequences
+            stmt.executeUpdate("TRUNCATE " + tables + " RESTART IDENTITY");
         }
+        // mid_max back to zero instead of empty, register reads it
+        create_and_insert_mid_max_table(conn);
     }
 
-    private void create_video_favorite_table(Connection conn, List<VideoRecord> videoRecords) throws SQLException {
-        try (PreparedStatement stmt = conn.prepareStatement(
-                "CREATE TABLE IF NOT EXISTS video_favorite (" +
-                        "video_bv VARCHAR," +
-                        "favorite_by BIGINT," +
-                        "CONSTRAINT video_favorite_pk PRIMARY KEY (video_bv, favorite_by)" +
-                        ")"
-        )) {
-            stmt.executeUpdate();
-
-            try (PreparedStatement insertStmt = conn.prepareStatement(
-                    "INSERT INTO video_favorite (video_bv, favorite_by) VALUES (?, ?)"
-            )) {
-                for (VideoRecord videoRecord : videoRecords) {
-                    String bv = videoRecord.getBv();
-                    for (Long favoriteBy : videoRecord.getFavorite()) {
-                        insertStmt.setString(1, bv);
-                        insertStmt.setLong(2, favoriteBy);
-                        insertStmt.addBatch();
-                    }
+    private static void recreateSchema(Connection conn) throws SQLException {
+        try (Statement stmt = conn.createStatement()) {
+            stmt.executeUpdate("DROP SCHEMA public CASCADE");
+            stmt.executeUpdate("CREATE SCHEMA public");
+            for (ImportTable table : ImportTable.values()) {
+                stmt.executeUpdate(table.createSql(true));
+                for (String sql : table.createIndexSql("")) {
+                    stmt.executeUpdate(sql);
                 }
-                insertStmt.executeBatch();
             }
         }
+        create_and_insert_mid_max_table(conn);
     }
 
-
-
-
-
-
-    @Override
-    public void truncate() {
+    private static void truncateEachTable(Connection conn) throws SQLException {
         String sql = "DO $$\n" +
                 "DECLARE\n" +
                 "    tables CURSOR FOR\n" +
@@ -478,11 +604,8 @@ public class DatabaseServiceImpl implements DatabaseService {
                 "    END LOOP;\n" +
                 "END $$;\n";
 
-        try (Connection conn = dataSource.getConnection();
-             PreparedStatement stmt = conn.prepareStatement(sql)) {
+        try (PreparedStatement stmt = conn.prepareStatement(sql)) {
             stmt.executeUpdate();
-        } catch (SQLException e) {
-            throw new RuntimeException(e);
         }
     }
 
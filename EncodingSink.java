@@ -0,0 +1,57 @@
+package io.sustc.service.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * {@link BinaryImportSink} without a connection. {@link ParallelEncoder} fills one per range of
+ * records off the writer thread; the bytes are cut into chunks of about
+ * {@link ImportOptions#chunkBytes} that the table's {@link CopyImportSink} sends unchanged.
+ */
+final class EncodingSink extends BinaryImportSink {
+
+    final List<byte[]> chunks = new ArrayList<>();
+
+    /**
+     * Ordinal of the last record in the range.
+     */
+    final long lastOrdinal;
+
+    private final ImportSink target;
+
+    EncodingSink(ImportSink target, long lastOrdinal) {
+        super(target.table, target.columns, target.options, Math.min(target.options.chunkBytes, 1 << 16));
+        this.lastOrdinal = lastOrdinal;
+        this.target = target;
+    }
+
+    @Override
+    void skipRecord() {
+        target.skipRecord();
+    }
+
+    @Override
+    protected void sendChunk() {
+        chunks.add(encoder.toByteArray());
+        encoder.reset();
+    }
+
+    @Override
+    protected void completeStatement() {
+        if (encoder.size() > 0) {
+            sendChunk();
+        }
+    }
+
+    @Override
+    protected void reopen() {
+    }
+
+    @Override
+    protected void abort() {
+    }
+
+    @Override
+    protected void release() {
+    }
+}
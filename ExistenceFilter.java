@@ -0,0 +1,180 @@
+package io.sustc.service.impl;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * In-process membership filters for user mids and video bvs. {@link IdentityResolver} and
+ * {@link VideoKeys} ask them before going to the database, so a lookup of a mid or bv that
+ * never existed is answered without a primary key probe.
+ * <p>
+ * The filters are built from the tables after every import and truncate, and rebuilt every
+ * {@code sustc.filter.rebuild-interval} seconds to shed the keys of deleted users and videos.
+ * New users and videos are added as they are created. Until the first build has finished,
+ * while an import runs and after a failed build nothing is rejected.
+ */
+@Component
+@Slf4j
+public class ExistenceFilter {
+
+    private static final double FALSE_POSITIVE_RATE = 0.01;
+
+    // room for the rows created between two rebuilds
+    private static final long MIN_CAPACITY = 1 << 16;
+
+    private static final class Filters {
+        final BloomFilter users;
+        final BloomFilter videos;
+
+        Filters(long users, long videos) {
+            this.users = new BloomFilter(Math.max(users * 2, MIN_CAPACITY), FALSE_POSITIVE_RATE);
+            this.videos = new BloomFilter(Math.max(videos * 2, MIN_CAPACITY), FALSE_POSITIVE_RATE);
+        }
+    }
+
+    private final DataSource dataSource;
+
+    // null until the first build, nothing is rejected meanwhile
+    private volatile Filters current;
+
+    // set by clear(), the periodic rebuild would see a half-imported table until rebuild() runs
+    private boolean paused;
+
+    // the filters a rebuild is filling, keys created meanwhile go into both
+    private volatile Filters building;
+
+    private final ScheduledExecutorService rebuilder = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "existence-filter");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public ExistenceFilter(DataSource dataSource,
+                           @Value("${sustc.filter.rebuild-interval:600}") long rebuildInterval) {
+        this.dataSource = dataSource;
+        rebuilder.schedule(this::rebuildQuietly, 0, TimeUnit.SECONDS);
+        if (rebuildInterval > 0) {
+            rebuilder.scheduleWithFixedDelay(this::refresh, rebuildInterval, rebuildInterval, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Drops the filters until the next {@link #rebuild}, used when an import is about to reload
+     * the tables. The old filters would reject every imported key.
+     */
+    synchronized void clear() {
+        paused = true;
+        current = null;
+    }
+
+    private synchronized void refresh() {
+        if (!paused) {
+            rebuildQuietly();
+        }
+    }
+
+    /**
+     * @return {@code false} only if there is definitely no user {@code mid}
+     */
+    boolean mayHaveUser(long mid) {
+        Filters filters = current;
+        return filters == null || filters.users.mightContain(mid);
+    }
+
+    /**
+     * @return {@code false} only if there is definitely no video {@code bv}
+     */
+    boolean mayHaveVideo(String bv) {
+        Filters filters = current;
+        return filters == null || filters.videos.mightContain(bv);
+    }
+
+    void addUser(long mid) {
+        // building first: a rebuild that finishes in between has then swapped it in as current
+        Filters filters = building;
+        if (filters != null) {
+            filters.users.add(mid);
+        }
+        filters = current;
+        if (filters != null) {
+            filters.users.add(mid);
+        }
+    }
+
+    void addVideo(String bv) {
+        // building first: a rebuild that finishes in between has then swapped it in as current
+        Filters filters = building;
+        if (filters != null) {
+            filters.videos.add(bv);
+        }
+        filters = current;
+        if (filters != null) {
+            filters.videos.add(bv);
+        }
+    }
+
+    /**
+     * Reads every mid and bv and swaps in fresh filters. Serialized with the periodic rebuild.
+     */
+    synchronized void rebuild() throws SQLException {
+        long start = System.nanoTime();
+        paused = false;
+        try (Connection conn = dataSource.getConnection();
+             Statement stmt = conn.createStatement()) {
+            Filters filters = new Filters(count(stmt, "user_basic"), count(stmt, "video"));
+            // set before the scan, a row committed after the scan started is added by its creator
+            building = filters;
+            try {
+                conn.setAutoCommit(false);
+                // fetch in batches instead of materializing the whole table
+                stmt.setFetchSize(10_000);
+                try (ResultSet rs = stmt.executeQuery("SELECT mid FROM user_basic")) {
+                    while (rs.next()) {
+                        filters.users.add(rs.getLong(1));
+                    }
+                }
+                try (ResultSet rs = stmt.executeQuery("SELECT bv FROM video")) {
+                    while (rs.next()) {
+                        filters.videos.add(rs.getString(1));
+                    }
+                }
+                conn.commit();
+                current = filters;
+            } finally {
+                building = null;
+                conn.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            // the old filters may miss keys, after an import all of them
+            current = null;
+            throw e;
+        }
+        log.info("Existence filters rebuilt in {} ms", (System.nanoTime() - start) / 1_000_000);
+    }
+
+    void rebuildQuietly() {
+        try {
+            rebuild();
+        } catch (SQLException e) {
+            // the tables may not exist before the first import, nothing is rejected until a build succeeds
+            log.warn("Existence filter rebuild failed: {}", e.getMessage());
+        }
+    }
+
+    private static long count(Statement stmt, String table) throws SQLException {
+        // the planner's estimate is enough for sizing
+        try (ResultSet rs = stmt.executeQuery("SELECT reltuples::BIGINT FROM pg_class WHERE relname = '" + table + "'")) {
+            return rs.next() ? Math.max(rs.getLong(1), 0) : 0;
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package io.sustc.service.impl;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The 64-bit string hash shared by the {@link BloomFilter} keys and the content fingerprints of
+ * the {@link DanmuTimelineIndex}.
+ */
+final class Hashing {
+
+    private Hashing() {
+    }
+
+    /**
+     * @return the 64-bit FNV-1a hash of the UTF-8 bytes of {@code key}, spread with {@link #mix}
+     * before its bits are used on their own
+     */
+    static long fnv1a(String key) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    /**
+     * The finalizer of MurmurHash3.
+     */
+    static long mix(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return key;
+    }
+}
@@ -0,0 +1,248 @@
+package io.sustc.service.impl;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Danmu counts per 10-second bucket of every video, so getHotspot reads one small int array
+ * instead of every danmu time of the video. The counts of all videos are built with one
+ * aggregate query after every import and truncate and at startup, committed danmu are counted
+ * as the {@link DanmuTimelineIndex} reports them, and deleteAccount and deleteVideo report what
+ * they delete.
+ * <p>
+ * A video whose counts changed while a build was scanning, and any video before the first
+ * build finished, is counted with one query of its own the next time it is asked for.
+ */
+@Component
+@Slf4j
+public class HotspotHistogram implements DanmuTimelineIndex.Listener {
+
+    static final int BUCKET_SECONDS = 10;
+
+    // the same float division getHotspot always did, (int) (time / 10)
+    private static final String BUILD_SQL = "SELECT vid, floor(time::REAL / 10::REAL)::INT, COUNT(*) FROM danmu GROUP BY 1, 2";
+
+    private static final String LOAD_SQL = "SELECT floor(time::REAL / 10::REAL)::INT, COUNT(*) FROM danmu WHERE vid = ? GROUP BY 1";
+
+    /**
+     * The bucket counts of one video, indexed by bucket.
+     */
+    private static final class Buckets {
+        private int[] counts = new int[0];
+
+        synchronized void add(int bucket, int delta) {
+            if (bucket < 0) {
+                return;
+            }
+            if (bucket >= counts.length) {
+                counts = Arrays.copyOf(counts, bucket + 1);
+            }
+            counts[bucket] = Math.max(counts[bucket] + delta, 0);
+        }
+
+        /**
+         * @return the buckets holding the most danmu, empty when there is none
+         */
+        synchronized Set<Integer> hottest() {
+            Set<Integer> hottest = new HashSet<>();
+            int max = 0;
+            for (int bucket = 0; bucket < counts.length; bucket++) {
+                if (counts[bucket] > max) {
+                    max = counts[bucket];
+                    hottest.clear();
+                }
+                if (counts[bucket] == max && max > 0) {
+                    hottest.add(bucket);
+                }
+            }
+            return hottest;
+        }
+    }
+
+    private final DataSource dataSource;
+
+    private final ConnectionScope connections;
+
+    private volatile Map<Integer, Buckets> histograms = new ConcurrentHashMap<>();
+
+    // every video is in histograms, a missing one has no danmu
+    private volatile boolean complete;
+
+    // a build is scanning, videos changed meanwhile go to stale
+    private volatile boolean building;
+
+    // changed while a build was scanning, its counts are loaded again on demand
+    private final Set<Integer> stale = ConcurrentHashMap.newKeySet();
+
+    // bumped by every change to a video without current counts, a video loaded while one
+    // happened is not kept
+    private final AtomicLong generation = new AtomicLong();
+
+    // one build at a time, the startup build may still run when an import finishes
+    private final Object buildLock = new Object();
+
+    private final ScheduledExecutorService builder = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "hotspot-histogram");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public HotspotHistogram(DataSource dataSource, ConnectionScope connections, DanmuTimelineIndex timelines) {
+        this.dataSource = dataSource;
+        this.connections = connections;
+        timelines.addListener(this);
+        builder.schedule(this::rebuildQuietly, 0, TimeUnit.SECONDS);
+    }
+
+    static int bucket(double time) {
+        return (int) ((float) time / BUCKET_SECONDS);
+    }
+
+    /**
+     * @return the indexes of the 10-second buckets of {@code vid} holding the most danmu
+     */
+    Set<Integer> hotspots(int vid) throws SQLException {
+        if (!stale.contains(vid)) {
+            Buckets buckets = histograms.get(vid);
+            if (buckets != null) {
+                return buckets.hottest();
+            }
+            if (complete) {
+                return new HashSet<>();
+            }
+        }
+
+        long seen = generation.get();
+        Buckets buckets = new Buckets();
+        // cached beyond the call, so never read from the replica
+        try (Connection conn = connections.getPrimaryReadConnection();
+             PreparedStatement stmt = conn.prepareStatement(LOAD_SQL)) {
+            stmt.setInt(1, vid);
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    buckets.add(rs.getInt(1), rs.getInt(2));
+                }
+            }
+        }
+        synchronized (this) {
+            if (generation.get() == seen && !building) {
+                histograms.put(vid, buckets);
+                stale.remove(vid);
+            }
+        }
+        return buckets.hottest();
+    }
+
+    @Override
+    public void added(int vid, long danmuId, double time) {
+        changed(vid, bucket(time), 1);
+    }
+
+    /**
+     * Called once danmu of {@code vid} sent at {@code time} is deleted.
+     */
+    void removed(int vid, double time) {
+        changed(vid, bucket(time), -1);
+    }
+
+    /**
+     * Called once the video {@code vid} is deleted together with its danmu.
+     */
+    synchronized void dropped(int vid) {
+        generation.incrementAndGet();
+        if (building) {
+            stale.add(vid);
+        }
+        histograms.remove(vid);
+    }
+
+    private synchronized void changed(int vid, int bucket, int delta) {
+        if (building) {
+            stale.add(vid);
+        }
+        Buckets buckets = histograms.get(vid);
+        if (buckets == null && complete) {
+            buckets = new Buckets();
+            histograms.put(vid, buckets);
+        }
+        if (buckets == null || stale.contains(vid)) {
+            generation.incrementAndGet();
+        }
+        if (buckets != null) {
+            buckets.add(bucket, delta);
+        }
+    }
+
+    /**
+     * Forgets every count until the next {@link #rebuild}, used when the danmu table is about to
+     * be reloaded.
+     */
+    synchronized void clear() {
+        generation.incrementAndGet();
+        complete = false;
+        histograms = new ConcurrentHashMap<>();
+        stale.clear();
+    }
+
+    /**
+     * Counts the danmu of every video with one scan and swaps the result in.
+     */
+    void rebuild() throws SQLException {
+        synchronized (buildLock) {
+            build();
+        }
+    }
+
+    private void build() throws SQLException {
+        long start = System.nanoTime();
+        synchronized (this) {
+            building = true;
+            // the scan counts them afresh
+            stale.clear();
+        }
+        try {
+            Map<Integer, Buckets> fresh = new ConcurrentHashMap<>();
+            try (Connection conn = dataSource.getConnection();
+                 Statement stmt = conn.createStatement();
+                 ResultSet rs = stmt.executeQuery(BUILD_SQL)) {
+                while (rs.next()) {
+                    fresh.computeIfAbsent(rs.getInt(1), vid -> new Buckets()).add(rs.getInt(2), rs.getInt(3));
+                }
+            }
+            synchronized (this) {
+                histograms = fresh;
+                complete = true;
+            }
+        } finally {
+            synchronized (this) {
+                building = false;
+            }
+        }
+        log.info("Hotspot histograms built in {} ms", (System.nanoTime() - start) / 1_000_000);
+    }
+
+    void rebuildQuietly() {
+        try {
+            rebuild();
+        } catch (SQLException e) {
+            // the tables may not exist before the first import, videos are counted on demand
+            log.warn("Hotspot histogram build failed: {}", e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,284 @@
+package io.sustc.service.impl;
+
+import io.sustc.dto.AuthInfo;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Resolves an {@link AuthInfo} to the mid it authenticates, shared by all services. Users are
+ * cached with their identity_s, qq and wechat with the mid they belong to, so once a user has
+ * been seen an auth check costs no database round trip. Like {@link VideoKeys} only existing
+ * users are cached, a miss always asks the database, and a cold auth check asks it once. Rows
+ * read inside a replica scope are used but not cached.
+ * <p>
+ * register and deleteAccount keep the cache up to date through {@link #registered} and
+ * {@link #deleted}, import and truncate {@link #clear} it.
+ */
+@Component
+public class IdentityResolver {
+
+    static final String SUPERUSER = "SUPERUSER";
+    static final String USER = "USER";
+
+    @Autowired
+    private ConnectionScope connections;
+
+    @Autowired
+    private ExistenceFilter existence;
+
+    // mid -> identity_s
+    private final Map<Long, String> identities = new ConcurrentHashMap<>();
+    private final Map<String, Long> qqMids = new ConcurrentHashMap<>();
+    private final Map<String, Long> wechatMids = new ConcurrentHashMap<>();
+
+    /**
+     * Everything an auth check needs in one round trip: whether the mid exists, the owners of
+     * the qq and the wechat, and the identity_s of all three so the caller's role is cached too.
+     */
+    private static final String RESOLVE_SQL = "SELECT a.mid, a.identity_s, q.mid, qb.identity_s, w.mid, wb.identity_s " +
+            "FROM (VALUES (?::BIGINT, ?::VARCHAR, ?::VARCHAR)) AS p(mid, qq, wechat) " +
+            "LEFT JOIN user_basic a ON a.mid = p.mid " +
+            "LEFT JOIN user_qq q ON q.qq = p.qq " +
+            "LEFT JOIN user_basic qb ON qb.mid = q.mid " +
+            "LEFT JOIN user_wechat w ON w.wechat = p.wechat " +
+            "LEFT JOIN user_basic wb ON wb.mid = w.mid";
+
+    // Bumped by every invalidation, a lookup that raced with one does not cache its result
+    private final AtomicLong generation = new AtomicLong();
+
+    @FunctionalInterface
+    private interface Query<T> {
+        T run(Connection conn) throws SQLException;
+    }
+
+    /**
+     * The rules every service used to implement on its own: the mid of the auth if that user
+     * exists, otherwise the owner of the qq, otherwise the owner of the wechat. When both qq and
+     * wechat are given they have to belong to the same user.
+     *
+     * @return the authenticated mid, or -1 when the auth is invalid
+     */
+    long resolve(AuthInfo auth) throws SQLException {
+        return resolve(null, auth);
+    }
+
+    /**
+     * Same as {@link #resolve(AuthInfo)}, a cache miss queries on {@code conn}.
+     */
+    long resolve(Connection conn, AuthInfo auth) throws SQLException {
+        if (auth == null) {
+            return -1;
+        }
+        String qq = isNotEmpty(auth.getQq()) ? auth.getQq() : null;
+        String wechat = isNotEmpty(auth.getWechat()) ? auth.getWechat() : null;
+
+        // Warm path, only a cached mid is known to exist
+        if (identities.containsKey(auth.getMid())) {
+            Long qqMid = qq == null ? null : qqMids.get(qq);
+            Long wechatMid = wechat == null ? null : wechatMids.get(wechat);
+            if ((qq == null || qqMid != null) && (wechat == null || wechatMid != null)) {
+                return decide(auth.getMid(), qqMid == null ? -1 : qqMid, wechatMid == null ? -1 : wechatMid, qq, wechat);
+            }
+        }
+
+        if (qq == null && wechat == null && !existence.mayHaveUser(auth.getMid())) {
+            return -1;
+        }
+
+        // Cold path, one statement instead of a query per lookup
+        long seen = generation.get();
+        return query(conn, c -> {
+            try (PreparedStatement stmt = c.prepareStatement(RESOLVE_SQL)) {
+                stmt.setLong(1, auth.getMid());
+                stmt.setString(2, qq);
+                stmt.setString(3, wechat);
+                try (ResultSet rs = stmt.executeQuery()) {
+                    // the VALUES row always yields exactly one row, qq and wechat are unique
+                    rs.next();
+                    long mid = cacheUser(rs, 1, seen);
+                    long qqMid = cacheUser(rs, 3, seen);
+                    long wechatMid = cacheUser(rs, 5, seen);
+                    if (qqMid > 0) {
+                        cache(qqMids, qq, qqMid, seen);
+                    }
+                    if (wechatMid > 0) {
+                        cache(wechatMids, wechat, wechatMid, seen);
+                    }
+                    return decide(mid, qqMid, wechatMid, qq, wechat);
+                }
+            }
+        });
+    }
+
+    /**
+     * @param mid the mid of the auth if that user exists, -1 otherwise
+     */
+    private static long decide(long mid, long qqMid, long wechatMid, String qq, String wechat) {
+        long resolved = mid != -1 ? mid : qqMid != -1 ? qqMid : wechatMid;
+        if (resolved == -1) {
+            return -1;
+        }
+        if (qq != null && wechat != null && qqMid != wechatMid) {
+            return -1;
+        }
+        return resolved;
+    }
+
+    /**
+     * Caches the mid and identity_s read from columns {@code column} and {@code column + 1}.
+     *
+     * @return the mid, or -1 when the join found no user
+     */
+    private long cacheUser(ResultSet rs, int column, long seen) throws SQLException {
+        long mid = rs.getLong(column);
+        if (rs.wasNull()) {
+            return -1;
+        }
+        cache(identities, mid, rs.getString(column + 1), seen);
+        return mid;
+    }
+
+    boolean exists(long mid) throws SQLException {
+        return identity(null, mid) != null;
+    }
+
+    boolean exists(Connection conn, long mid) throws SQLException {
+        return identity(conn, mid) != null;
+    }
+
+    /**
+     * @return identity_s of the user, or {@code null} when there is no such user
+     */
+    String identity(long mid) throws SQLException {
+        return identity(null, mid);
+    }
+
+    String identity(Connection conn, long mid) throws SQLException {
+        String identity = identities.get(mid);
+        if (identity != null) {
+            return identity;
+        }
+        if (!existence.mayHaveUser(mid)) {
+            return null;
+        }
+        long seen = generation.get();
+        identity = query(conn, c -> {
+            try (PreparedStatement stmt = c.prepareStatement("SELECT identity_s FROM user_basic WHERE mid = ?")) {
+                stmt.setLong(1, mid);
+                try (ResultSet rs = stmt.executeQuery()) {
+                    return rs.next() ? rs.getString(1) : null;
+                }
+            }
+        });
+        cache(identities, mid, identity, seen);
+        return identity;
+    }
+
+    boolean isSuperuser(long mid) throws SQLException {
+        return SUPERUSER.equals(identity(mid));
+    }
+
+    /**
+     * @return the mid owning {@code qq}, or -1
+     */
+    long qqMid(Connection conn, String qq) throws SQLException {
+        return ownerMid(conn, qqMids, "SELECT mid FROM user_qq WHERE qq = ?", qq);
+    }
+
+    /**
+     * @return the mid owning {@code wechat}, or -1
+     */
+    long wechatMid(Connection conn, String wechat) throws SQLException {
+        return ownerMid(conn, wechatMids, "SELECT mid FROM user_wechat WHERE wechat = ?", wechat);
+    }
+
+    private long ownerMid(Connection conn, Map<String, Long> cache, String sql, String value) throws SQLException {
+        if (!isNotEmpty(value)) {
+            return -1;
+        }
+        Long mid = cache.get(value);
+        if (mid != null) {
+            return mid;
+        }
+        long seen = generation.get();
+        mid = query(conn, c -> {
+            try (PreparedStatement stmt = c.prepareStatement(sql)) {
+                stmt.setString(1, value);
+                try (ResultSet rs = stmt.executeQuery()) {
+                    return rs.next() ? rs.getLong(1) : null;
+                }
+            }
+        });
+        cache(cache, value, mid, seen);
+        return mid == null ? -1 : mid;
+    }
+
+    /**
+     * Called once a new user is committed.
+     */
+    void registered(long mid, String identity, String qq, String wechat) {
+        generation.incrementAndGet();
+        existence.addUser(mid);
+        identities.put(mid, identity);
+        if (isNotEmpty(qq)) {
+            qqMids.put(qq, mid);
+        }
+        if (isNotEmpty(wechat)) {
+            wechatMids.put(wechat, mid);
+        }
+    }
+
+    /**
+     * Called once a user is deleted.
+     */
+    void deleted(long mid) {
+        generation.incrementAndGet();
+        identities.remove(mid);
+        qqMids.values().removeIf(owner -> owner == mid);
+        wechatMids.values().removeIf(owner -> owner == mid);
+    }
+
+    /**
+     * Forgets every user, used when the user tables are reloaded or emptied.
+     */
+    void clear() {
+        generation.incrementAndGet();
+        identities.clear();
+        qqMids.clear();
+        wechatMids.clear();
+    }
+
+    private <K, V> void cache(Map<K, V> cache, K key, V value, long seen) {
+        // a lagging replica may still have a deleted user
+        if (value == null || connections.isOnReplica()) {
+            return;
+        }
+        cache.put(key, value);
+        // an invalidation ran while we were querying, the value may already be stale
+        if (generation.get() != seen) {
+            cache.remove(key, value);
+        }
+    }
+
+    private <T> T query(Connection conn, Query<T> query) throws SQLException {
+        if (conn != null) {
+            return query.run(conn);
+        }
+        // only a cache miss borrows a connection, the caller's if it holds one
+        try (Connection borrowed = connections.getConnection()) {
+            return query.run(borrowed);
+        }
+    }
+
+    private static boolean isNotEmpty(String value) {
+        return value != null && !value.isEmpty();
+    }
+}
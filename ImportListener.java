@@ -0,0 +1,29 @@
+package io.sustc.service.impl;
+
+import java.util.List;
+
+/**
+ * Receives the progress of {@link DatabaseServiceImpl#importData}. Every Spring bean
+ * implementing this interface is called, next to the built-in listener that writes the
+ * progress log lines. Callbacks run on the loading threads and on the monitor thread, so
+ * implementations must be thread safe and should return quickly.
+ */
+public interface ImportListener {
+
+    default void tableStarted(ImportStats table) {
+    }
+
+    default void tableFinished(ImportStats table) {
+    }
+
+    /**
+     * Called every {@code sustc.import.progress-interval} seconds while the import runs.
+     *
+     * @param heapHighWater highest used heap seen so far in this import, in bytes
+     */
+    default void progress(List<ImportStats> tables, long heapHighWater) {
+    }
+
+    default void importFinished(List<ImportStats> tables, long heapHighWater) {
+    }
+}
@@ -0,0 +1,18 @@
+package io.sustc.service.impl;
+
+/**
+ * How {@link DatabaseServiceImpl#importData} pushes rows into PostgreSQL.
+ */
+public enum ImportMode {
+
+    /**
+     * PreparedStatement addBatch / executeBatch, works with any JDBC driver.
+     */
+    BATCH,
+
+    /**
+     * PostgreSQL {@code COPY ... FROM STDIN (FORMAT binary)}, falls back to {@link #BATCH}
+     * when the connection is not a pgjdbc connection.
+     */
+    COPY
+}
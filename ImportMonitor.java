@@ -0,0 +1,123 @@
+package io.sustc.service.impl;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Collects the {@link ImportStats} of one import and hands them to the {@link ImportListener}s.
+ * A daemon thread samples the used heap once a second and reports progress every
+ * {@code intervalSeconds}; a failing listener is logged and otherwise ignored.
+ */
+@Slf4j
+final class ImportMonitor implements AutoCloseable {
+
+    private static final long MB = 1024 * 1024;
+
+    private final List<ImportListener> listeners = new ArrayList<>();
+    private final List<ImportStats> tables = new CopyOnWriteArrayList<>();
+    private final AtomicLong heapHighWater = new AtomicLong();
+    private final ScheduledExecutorService ticker = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "import-monitor");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    ImportMonitor(List<ImportListener> listeners, long intervalSeconds) {
+        this.listeners.add(new LogListener());
+        this.listeners.addAll(listeners);
+
+        ticker.scheduleAtFixedRate(this::sampleHeap, 0, 1, TimeUnit.SECONDS);
+        if (intervalSeconds > 0) {
+            ticker.scheduleAtFixedRate(() -> notifyListeners(l -> l.progress(tables, sampleHeap())),
+                    intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+        }
+    }
+
+    ImportStats table(String table) {
+        ImportStats stats = new ImportStats(table, this);
+        tables.add(stats);
+        notifyListeners(l -> l.tableStarted(stats));
+        return stats;
+    }
+
+    void tableFinished(ImportStats stats) {
+        sampleHeap();
+        notifyListeners(l -> l.tableFinished(stats));
+    }
+
+    void importFinished() {
+        long heap = sampleHeap();
+        notifyListeners(l -> l.importFinished(tables, heap));
+    }
+
+    private long sampleHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        long used = runtime.totalMemory() - runtime.freeMemory();
+        return heapHighWater.accumulateAndGet(used, Math::max);
+    }
+
+    private void notifyListeners(Consumer<ImportListener> event) {
+        for (ImportListener listener : listeners) {
+            try {
+                event.accept(listener);
+            } catch (RuntimeException e) {
+                log.warn("Import listener {} failed", listener.getClass().getName(), e);
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        ticker.shutdownNow();
+    }
+
+    private static final class LogListener implements ImportListener {
+
+        @Override
+        public void tableFinished(ImportStats table) {
+            log.info("Imported {} rows into {} in {} ms ({} rows/s, {} MB, database {} ms, encode {} ms, {})",
+                    table.getRows(), table.getTable(), table.getElapsedMillis(), table.getRowsPerSecond(),
+                    table.getBytes() / MB, table.getDatabaseMillis(), table.getEncodeMillis(), table.getSink());
+            if (table.getSkippedRecords() > 0) {
+                log.warn("Skipped {} input records of {} that reference no imported video",
+                        table.getSkippedRecords(), table.getTable());
+            }
+        }
+
+        @Override
+        public void progress(List<ImportStats> tables, long heapHighWater) {
+            StringBuilder line = new StringBuilder();
+            for (ImportStats table : tables) {
+                if (table.isFinished()) {
+                    continue;
+                }
+                line.append(line.length() == 0 ? "" : ", ")
+                        .append(table.getTable()).append(' ')
+                        .append(table.getRows()).append(" rows ")
+                        .append(table.getRowsPerSecond()).append(" rows/s");
+            }
+            log.info("Import progress: {}; heap high-water {} MB", line.length() == 0 ? "no table loading" : line,
+                    heapHighWater / MB);
+        }
+
+        @Override
+        public void importFinished(List<ImportStats> tables, long heapHighWater) {
+            long rows = 0;
+            long bytes = 0;
+            for (ImportStats table : tables) {
+                rows += table.getRows();
+                bytes += table.getBytes();
+            }
+            log.info("Import wrote {} rows ({} MB) into {} tables, heap high-water {} MB",
+                    rows, bytes / MB, tables.size(), heapHighWater / MB);
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package io.sustc.service.impl;
+
+/**
+ * Settings shared by every {@link ImportSink} of one import run.
+ */
+final class ImportOptions {
+
+    final ImportMode mode;
+
+    /**
+     * Buffered rows are sent to the database once this many rows are pending...
+     */
+    final int chunkRows;
+
+    /**
+     * ...or once they take roughly this many bytes, whichever comes first.
+     */
+    final int chunkBytes;
+
+    /**
+     * Commit after this many rows, 0 keeps one transaction per table.
+     */
+    final long commitEvery;
+
+    ImportOptions(ImportMode mode, int chunkRows, int chunkBytes, long commitEvery) {
+        this.mode = mode;
+        this.chunkRows = Math.max(1, chunkRows);
+        this.chunkBytes = Math.max(1024, chunkBytes);
+        this.commitEvery = Math.max(0, commitEvery);
+    }
+}
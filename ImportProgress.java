@@ -0,0 +1,109 @@
+package io.sustc.service.impl;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Per-table checkpoints of a resumable import, kept in the {@code import_progress} table.
+ * A row is written in the same transaction as every committed chunk, so after a crash the
+ * table says exactly how many input records of each table are safely in the database.
+ * Once the whole import has finished the checkpoints are {@link #reset}, so the next import
+ * starts from scratch instead of skipping every table.
+ */
+final class ImportProgress {
+
+    static final ImportProgress DISABLED = new ImportProgress(false, new HashMap<>());
+
+    private static final String CREATE_SQL = "CREATE TABLE IF NOT EXISTS import_progress (" +
+            "table_name VARCHAR PRIMARY KEY," +
+            "committed_records BIGINT NOT NULL," +
+            "chunks BIGINT NOT NULL," +
+            "finished BOOLEAN NOT NULL" +
+            ")";
+
+    private static final String SAVE_SQL = "INSERT INTO import_progress (table_name, committed_records, chunks, finished) " +
+            "VALUES (?, ?, 1, ?) " +
+            "ON CONFLICT (table_name) DO UPDATE SET " +
+            "committed_records = GREATEST(import_progress.committed_records, EXCLUDED.committed_records), " +
+            "chunks = import_progress.chunks + 1, " +
+            "finished = EXCLUDED.finished";
+
+    private static final class State {
+        final long records;
+        final boolean finished;
+
+        State(long records, boolean finished) {
+            this.records = records;
+            this.finished = finished;
+        }
+    }
+
+    private final boolean enabled;
+    private final Map<String, State> committed;
+
+    private ImportProgress(boolean enabled, Map<String, State> committed) {
+        this.enabled = enabled;
+        this.committed = committed;
+    }
+
+    static ImportProgress load(DataSource dataSource) throws SQLException {
+        Map<String, State> committed = new HashMap<>();
+        try (Connection conn = dataSource.getConnection();
+             Statement stmt = conn.createStatement()) {
+            stmt.executeUpdate(CREATE_SQL);
+            try (ResultSet rs = stmt.executeQuery("SELECT table_name, committed_records, finished FROM import_progress")) {
+                while (rs.next()) {
+                    committed.put(rs.getString(1), new State(rs.getLong(2), rs.getBoolean(3)));
+                }
+            }
+        }
+        return new ImportProgress(true, committed);
+    }
+
+    boolean isFinished(ImportTable table) {
+        State state = committed.get(table.tableName);
+        return state != null && state.finished;
+    }
+
+    /**
+     * Number of leading input records already committed for the table, they are skipped on resume.
+     */
+    long committedRecords(ImportTable table) {
+        State state = committed.get(table.tableName);
+        return state == null ? 0 : state.records;
+    }
+
+    /**
+     * Forgets every checkpoint, called once an import has finished.
+     */
+    void reset(DataSource dataSource) throws SQLException {
+        if (!enabled) {
+            return;
+        }
+        try (Connection conn = dataSource.getConnection();
+             Statement stmt = conn.createStatement()) {
+            stmt.executeUpdate("DELETE FROM import_progress");
+        }
+        committed.clear();
+    }
+
+    ImportSink.Checkpoint checkpoint(ImportTable table) {
+        if (!enabled) {
+            return null;
+        }
+        return (conn, records, finished) -> {
+            try (PreparedStatement stmt = conn.prepareStatement(SAVE_SQL)) {
+                stmt.setString(1, table.tableName);
+                stmt.setLong(2, records);
+                stmt.setBoolean(3, finished);
+                stmt.executeUpdate();
+            }
+        };
+    }
+}
@@ -0,0 +1,33 @@
+package io.sustc.service.impl;
+
+/**
+ * State of one {@link DatabaseServiceImpl#importData} call shared by all of its table loads.
+ */
+final class ImportRun implements AutoCloseable {
+
+    final ImportProgress progress;
+
+    /**
+     * {@code null} when rows are encoded on the writer threads.
+     */
+    final ParallelEncoder encoder;
+
+    final ImportMonitor monitor;
+
+    ImportRun(ImportProgress progress, ParallelEncoder encoder, ImportMonitor monitor) {
+        this.progress = progress;
+        this.encoder = encoder;
+        this.monitor = monitor;
+    }
+
+    @Override
+    public void close() {
+        try {
+            if (encoder != null) {
+                encoder.close();
+            }
+        } finally {
+            monitor.close();
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package io.sustc.service.impl;
+
+import lombok.extern.slf4j.Slf4j;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Runs import steps on separate pooled connections. A step starts as soon as all the
+ * steps it depends on have finished, at most {@code parallelism} steps run at once.
+ * The first failure stops steps that have not started yet and is rethrown by {@link #run}.
+ */
+@Slf4j
+class ImportScheduler {
+
+    @FunctionalInterface
+    interface ImportTask {
+        void run(Connection conn) throws SQLException;
+    }
+
+    private static final class Step {
+        final String name;
+        final ImportTask task;
+        final String[] dependsOn;
+
+        Step(String name, ImportTask task, String[] dependsOn) {
+            this.name = name;
+            this.task = task;
+            this.dependsOn = dependsOn;
+        }
+    }
+
+    private final Map<String, Step> steps = new LinkedHashMap<>();
+
+    /**
+     * Registers a step. Dependencies have to be registered before the steps that need them.
+     */
+    ImportScheduler add(String name, ImportTask task, String... dependsOn) {
+        for (String dependency : dependsOn) {
+            if (!steps.containsKey(dependency)) {
+                throw new IllegalArgumentException("Step " + name + " depends on unknown step " + dependency);
+            }
+        }
+        if (steps.put(name, new Step(name, task, dependsOn)) != null) {
+            throw new IllegalArgumentException("Duplicate import step " + name);
+        }
+        return this;
+    }
+
+    void run(DataSource dataSource, int parallelism) throws SQLException {
+        int threads = Math.max(1, Math.min(parallelism, steps.size()));
+        AtomicInteger threadId = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(threads, r -> {
+            Thread thread = new Thread(r, "import-" + threadId.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        Map<String, CompletableFuture<Void>> futures = new LinkedHashMap<>();
+
+        try {
+            for (Step step : steps.values()) {
+                List<CompletableFuture<Void>> dependencies = new ArrayList<>();
+                for (String dependency : step.dependsOn) {
+                    dependencies.add(futures.get(dependency));
+                }
+                CompletableFuture<Void> future = CompletableFuture
+                        .allOf(dependencies.toArray(new CompletableFuture[0]))
+                        .thenRunAsync(() -> execute(step, dataSource, failure), executor);
+                futures.put(step.name, future);
+            }
+            CompletableFuture.allOf(futures.values().toArray(new CompletableFuture[0]))
+                    .exceptionally(e -> null)
+                    .join();
+        } finally {
+            executor.shutdownNow();
+        }
+
+        Throwable error = failure.get();
+        if (error instanceof SQLException) {
+            throw (SQLException) error;
+        }
+        if (error != null) {
+            throw new IllegalStateException("Import step failed", error);
+        }
+    }
+
+    private void execute(Step step, DataSource dataSource, AtomicReference<Throwable> failure) {
+        if (failure.get() != null) {
+            throw new CompletionException(new IllegalStateException("Skipped " + step.name + " after an earlier failure"));
+        }
+        long start = System.nanoTime();
+        try (Connection conn = dataSource.getConnection()) {
+            step.task.run(conn);
+        } catch (SQLException | RuntimeException e) {
+            failure.compareAndSet(null, e);
+            log.error("Import step {} failed: {}", step.name, e.getMessage());
+            throw new CompletionException(e);
+        }
+        log.info("Import step {} done in {} ms", step.name, (System.nanoTime() - start) / 1_000_000);
+    }
+}
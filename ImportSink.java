@@ -0,0 +1,231 @@
+package io.sustc.service.impl;
+
+import org.postgresql.PGConnection;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+
+/**
+ * Row writer used by the importer. Columns are appended in the order given to
+ * {@link #open}, then {@link #endRow()} closes the row. Call {@link #finish()} after the
+ * last row; closing an unfinished sink discards whatever has not been committed yet.
+ * <p>
+ * Rows are sent in chunks bounded by {@link ImportOptions#chunkRows} and
+ * {@link ImportOptions#chunkBytes}, so client memory does not grow with the table size.
+ * Handed an autocommit connection, the sink opens a transaction of its own and commits it in
+ * {@link #finish()}, so the table is loaded in one transaction however many chunks it takes.
+ * With {@link ImportOptions#commitEvery} set, the sink also commits at the first record
+ * boundary after that many rows and records a {@link Checkpoint} in the same transaction.
+ * <p>
+ * Rows, bytes and the time spent inside the driver are counted into the table's
+ * {@link ImportStats} as chunks go out.
+ */
+abstract class ImportSink implements AutoCloseable {
+
+    @FunctionalInterface
+    interface Checkpoint {
+        /**
+         * Runs inside the transaction that commits everything up to and including record
+         * {@code records}.
+         */
+        void save(Connection conn, long records, boolean finished) throws SQLException;
+    }
+
+    protected final Connection conn;
+    protected final String table;
+    protected final String columns;
+    protected final ImportOptions options;
+
+    private final boolean manualCommit;
+    private final long startNanos = System.nanoTime();
+    private ImportStats stats;
+    private boolean encodedElsewhere;
+    private long rows;
+    private long pendingRows;
+    private long uncommittedRows;
+    private long lastRecord;
+    private Checkpoint checkpoint;
+    private boolean finished;
+
+    protected ImportSink(Connection conn, String table, String columns, ImportOptions options) throws SQLException {
+        this.conn = conn;
+        this.table = table;
+        this.columns = columns;
+        this.options = options;
+        this.manualCommit = conn.getAutoCommit();
+        if (manualCommit) {
+            conn.setAutoCommit(false);
+        }
+    }
+
+    /**
+     * For sinks that only encode rows and never talk to the database.
+     */
+    protected ImportSink(String table, String columns, ImportOptions options) {
+        this.conn = null;
+        this.table = table;
+        this.columns = columns;
+        this.options = options;
+        this.manualCommit = false;
+    }
+
+    static ImportSink open(Connection conn, ImportOptions options, String table, String columns,
+                           Checkpoint checkpoint, ImportStats stats) throws SQLException {
+        ImportSink sink = options.mode == ImportMode.COPY && conn.isWrapperFor(PGConnection.class)
+                ? new CopyImportSink(conn, table, columns, options)
+                : new BatchImportSink(conn, table, columns, options);
+        sink.checkpoint = checkpoint;
+        sink.stats = stats;
+        return sink;
+    }
+
+    abstract ImportSink int4(int value) throws SQLException;
+
+    abstract ImportSink int8(long value) throws SQLException;
+
+    abstract ImportSink float8(double value) throws SQLException;
+
+    abstract ImportSink text(String value) throws SQLException;
+
+    abstract ImportSink timestamp(Timestamp value) throws SQLException;
+
+    void endRow() throws SQLException {
+        rows++;
+        pendingRows++;
+        uncommittedRows++;
+        rowEnded();
+
+        if (pendingRows >= options.chunkRows || bufferedBytes() >= options.chunkBytes) {
+            long bytes = bufferedBytes();
+            long sendStart = System.nanoTime();
+            sendChunk();
+            sent(sendStart, pendingRows, bytes);
+            pendingRows = 0;
+        }
+    }
+
+    /**
+     * Marks every row of input record {@code ordinal} as written. Commits only happen here,
+     * so a checkpoint never splits the rows of one record.
+     */
+    void recordDone(long ordinal) throws SQLException {
+        lastRecord = ordinal;
+        if (manualCommit && options.commitEvery > 0 && uncommittedRows >= options.commitEvery) {
+            long bytes = bufferedBytes();
+            long commitStart = System.nanoTime();
+            completeStatement();
+            if (checkpoint != null) {
+                checkpoint.save(conn, lastRecord, false);
+            }
+            conn.commit();
+            reopen();
+            sent(commitStart, pendingRows, bytes);
+            uncommittedRows = 0;
+            pendingRows = 0;
+        }
+    }
+
+    /**
+     * Counts rows that reached the database already encoded, bypassing {@link #endRow()}.
+     */
+    protected void rowsAppended(long count, long bytes, long sendStartNanos) {
+        rows += count;
+        uncommittedRows += count;
+        encodedElsewhere = true;
+        sent(sendStartNanos, count, bytes);
+    }
+
+    void finish() throws SQLException {
+        long bytes = bufferedBytes();
+        long finishStart = System.nanoTime();
+        completeStatement();
+        if (checkpoint != null) {
+            checkpoint.save(conn, lastRecord, true);
+        }
+        if (manualCommit) {
+            conn.commit();
+        }
+        sent(finishStart, pendingRows, bytes);
+        finished = true;
+
+        if (stats != null) {
+            if (!encodedElsewhere) {
+                // Everything on the writer thread that was not a driver call went into building rows
+                stats.addEncodeNanos(System.nanoTime() - startNanos - stats.databaseNanos());
+            }
+            stats.finish(getClass().getSimpleName());
+        }
+    }
+
+    private void sent(long since, long rowCount, long bytes) {
+        if (stats != null) {
+            stats.addDatabaseNanos(System.nanoTime() - since);
+            stats.addRows(rowCount);
+            stats.addBytes(bytes);
+        }
+    }
+
+    long rowCount() {
+        return rows;
+    }
+
+    /**
+     * Counts an input record the writer dropped instead of turning it into a row.
+     */
+    void skipRecord() {
+        if (stats != null) {
+            stats.addSkippedRecords(1);
+        }
+    }
+
+    ImportStats stats() {
+        return stats;
+    }
+
+    @Override
+    public void close() throws SQLException {
+        try {
+            if (!finished) {
+                abort();
+                if (manualCommit) {
+                    conn.rollback();
+                }
+            }
+            release();
+        } finally {
+            if (manualCommit) {
+                conn.setAutoCommit(true);
+            }
+        }
+    }
+
+    /**
+     * Called after every row is complete.
+     */
+    protected abstract void rowEnded() throws SQLException;
+
+    /**
+     * Approximate size of the rows buffered since the last chunk was sent.
+     */
+    protected abstract long bufferedBytes();
+
+    /**
+     * Hands the buffered rows to the database, the statement stays open.
+     */
+    protected abstract void sendChunk() throws SQLException;
+
+    /**
+     * Sends what is left and completes the running statement so it can be committed.
+     */
+    protected abstract void completeStatement() throws SQLException;
+
+    /**
+     * Starts a new statement after a commit.
+     */
+    protected abstract void reopen() throws SQLException;
+
+    protected abstract void abort() throws SQLException;
+
+    protected abstract void release() throws SQLException;
+}
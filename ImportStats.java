@@ -0,0 +1,109 @@
+package io.sustc.service.impl;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters of one table load, updated by the loading threads and read by
+ * {@link ImportListener}s at any time.
+ * <p>
+ * {@link #getDatabaseMillis()} is the time the writer spent inside driver calls (sending
+ * chunks, completing statements, committing). {@link #getEncodeMillis()} is the time spent
+ * turning records into rows: the rest of the writer's time when it encodes itself, or the
+ * summed worker time when a {@link ParallelEncoder} does it.
+ */
+public final class ImportStats {
+
+    private final String table;
+    private final long startNanos = System.nanoTime();
+    private final AtomicLong rows = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong databaseNanos = new AtomicLong();
+    private final AtomicLong encodeNanos = new AtomicLong();
+    private final AtomicLong skippedRecords = new AtomicLong();
+    private final ImportMonitor monitor;
+    private volatile long finishNanos;
+    private volatile String sink;
+
+    ImportStats(String table, ImportMonitor monitor) {
+        this.table = table;
+        this.monitor = monitor;
+    }
+
+    public String getTable() {
+        return table;
+    }
+
+    public long getRows() {
+        return rows.get();
+    }
+
+    public long getBytes() {
+        return bytes.get();
+    }
+
+    public long getElapsedMillis() {
+        long end = finishNanos != 0 ? finishNanos : System.nanoTime();
+        return (end - startNanos) / 1_000_000;
+    }
+
+    public long getRowsPerSecond() {
+        return getRows() * 1000 / Math.max(1, getElapsedMillis());
+    }
+
+    public long getDatabaseMillis() {
+        return databaseNanos.get() / 1_000_000;
+    }
+
+    public long getEncodeMillis() {
+        return encodeNanos.get() / 1_000_000;
+    }
+
+    /**
+     * Input records that produced no row because they reference something the import does not
+     * contain, such as danmu of a bv missing from the video records.
+     */
+    public long getSkippedRecords() {
+        return skippedRecords.get();
+    }
+
+    public boolean isFinished() {
+        return finishNanos != 0;
+    }
+
+    /**
+     * Simple name of the {@link ImportSink} that wrote the table, {@code null} until it finishes.
+     */
+    public String getSink() {
+        return sink;
+    }
+
+    void addRows(long count) {
+        rows.addAndGet(count);
+    }
+
+    void addBytes(long count) {
+        bytes.addAndGet(count);
+    }
+
+    void addSkippedRecords(long count) {
+        skippedRecords.addAndGet(count);
+    }
+
+    void addDatabaseNanos(long nanos) {
+        databaseNanos.addAndGet(nanos);
+    }
+
+    void addEncodeNanos(long nanos) {
+        encodeNanos.addAndGet(Math.max(0, nanos));
+    }
+
+    long databaseNanos() {
+        return databaseNanos.get();
+    }
+
+    void finish(String sink) {
+        this.sink = sink;
+        this.finishNanos = System.nanoTime();
+        monitor.tableFinished(this);
+    }
+}
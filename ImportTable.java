@@ -0,0 +1,171 @@
+package io.sustc.service.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Schema of the tables filled by {@link DatabaseServiceImpl#importData}: columns, primary key
+ * and the secondary indexes the service queries rely on. Keeping the key and indexes apart
+ * from the column list lets the importer build them after the data is loaded. Indexes are
+ * written as {@code name (columns)}, with a leading {@code UNIQUE} for unique ones.
+ */
+enum ImportTable {
+
+    DANMU("danmu",
+            // danmu_id 是唯一主键
+            "danmu_id SERIAL, vid INT, mid BIGINT, time FLOAT, content VARCHAR, post_time TIMESTAMP, test BIGINT",
+            "danmu_pkey", "danmu_id",
+            "danmu_vid_time_idx (vid, time)",
+            "danmu_mid_idx (mid)"),
+
+    DANMU_LIKE("danmu_like",
+            "danmu_id BIGINT, liked_by BIGINT, vid INT",
+            "danmu_like_pk", "danmu_id, liked_by",
+            "danmu_like_vid_idx (vid)"),
+
+    USER_BASIC("user_basic",
+            "mid BIGINT, name VARCHAR, sex VARCHAR, birthday VARCHAR, level INT, coin INT, sign VARCHAR, " +
+                    "identity_s VARCHAR, password VARCHAR, qq VARCHAR, wechat VARCHAR",
+            "user_basic_pkey", "mid"),
+
+    USER_QQ("user_qq",
+            "mid BIGINT, qq VARCHAR",
+            "user_qq_pkey", "mid",
+            "user_qq_qq_idx (qq)"),
+
+    USER_WECHAT("user_wechat",
+            "mid BIGINT, wechat VARCHAR",
+            "user_wechat_pkey", "mid",
+            "user_wechat_wechat_idx (wechat)"),
+
+    FOLLOWING("following",
+            "user_mid BIGINT, following BIGINT",
+            "following_pk", "user_mid, following",
+            "following_following_idx (following)"),
+
+    // vid 是导入时分配的整数主键，关系表都用 vid 而不是 bv
+    VIDEO("video",
+            "vid SERIAL, bv VARCHAR, title VARCHAR, owner_mid BIGINT, owner_name VARCHAR, commit_time TIMESTAMP, " +
+                    "review_time TIMESTAMP, public_time TIMESTAMP, duration FLOAT, description VARCHAR, " +
+                    "reviewer BIGINT DEFAULT 0, number_of_viewer BIGINT DEFAULT 0",
+            "video_pk", "vid",
+            "UNIQUE video_bv_key (bv)",
+            "video_owner_mid_idx (owner_mid)"),
+
+    VIDEO_LIKE("video_like",
+            "vid INT, liked_by BIGINT",
+            "video_like_pk", "vid, liked_by",
+            "video_like_liked_by_idx (liked_by)"),
+
+    VIDEO_COIN("video_coin",
+            "vid INT, coin_by BIGINT",
+            "video_coin_pk", "vid, coin_by",
+            "video_coin_coin_by_idx (coin_by)"),
+
+    VIDEO_FAVORITE("video_favorite",
+            "vid INT, favorite_by BIGINT",
+            "video_favorite_pk", "vid, favorite_by",
+            "video_favorite_favorite_by_idx (favorite_by)"),
+
+    VIEWER_DURATION("viewer_duration",
+            "vid INT, viewer_mid BIGINT, view_time FLOAT",
+            "viewer_duration_pkey", "vid, viewer_mid, view_time",
+            "viewer_duration_viewer_mid_idx (viewer_mid, vid)");
+
+    static final String STAGING = "_staging";
+
+    private static final String UNIQUE = "UNIQUE ";
+
+    final String tableName;
+    private final String columns;
+    private final String primaryKeyName;
+    private final String primaryKeyColumns;
+    private final String[] indexes;
+
+    ImportTable(String tableName, String columns, String primaryKeyName, String primaryKeyColumns, String... indexes) {
+        this.tableName = tableName;
+        this.columns = columns;
+        this.primaryKeyName = primaryKeyName;
+        this.primaryKeyColumns = primaryKeyColumns;
+        this.indexes = indexes;
+    }
+
+    String createSql(boolean withPrimaryKey) {
+        String sql = "CREATE TABLE IF NOT EXISTS " + tableName + " (" + columns;
+        if (withPrimaryKey) {
+            sql += ", CONSTRAINT " + primaryKeyName + " PRIMARY KEY (" + primaryKeyColumns + ")";
+        }
+        return sql + ")";
+    }
+
+    /**
+     * Fresh UNLOGGED copy of the table without keys, loaded by a staged import and swapped in
+     * by {@link #swapSql()}.
+     */
+    List<String> createStagingSql() {
+        List<String> sql = new ArrayList<>();
+        sql.add("DROP TABLE IF EXISTS " + tableName + STAGING);
+        sql.add("CREATE UNLOGGED TABLE " + tableName + STAGING + " (" + columns + ")");
+        return sql;
+    }
+
+    /**
+     * @param suffix {@code ""} for the live table, {@link #STAGING} for its staging copy;
+     *               the same suffix goes on the table name and on every key and index name
+     */
+    String primaryKeyName(String suffix) {
+        return primaryKeyName + suffix;
+    }
+
+    String addPrimaryKeySql(String suffix) {
+        return "ALTER TABLE " + tableName + suffix + " ADD CONSTRAINT " + primaryKeyName + suffix +
+                " PRIMARY KEY (" + primaryKeyColumns + ")";
+    }
+
+    List<String> createIndexSql(String suffix) {
+        List<String> sql = new ArrayList<>();
+        for (String index : indexes) {
+            String spec = indexSpec(index);
+            int split = spec.indexOf(' ');
+            sql.add("CREATE " + (index.startsWith(UNIQUE) ? "UNIQUE " : "") + "INDEX IF NOT EXISTS " +
+                    spec.substring(0, split) + suffix + " ON " + tableName + suffix + " " + spec.substring(split + 1));
+        }
+        return sql;
+    }
+
+    /**
+     * Drops the primary key and secondary indexes left over from an earlier import.
+     */
+    List<String> dropIndexSql() {
+        List<String> sql = new ArrayList<>();
+        sql.add("ALTER TABLE " + tableName + " DROP CONSTRAINT IF EXISTS " + primaryKeyName);
+        for (String index : indexes) {
+            sql.add("DROP INDEX IF EXISTS " + indexName(index));
+        }
+        return sql;
+    }
+
+    /**
+     * Replaces the live table with its staging copy. Meant to run in one transaction with the
+     * swaps of the other tables, readers see either all old or all new tables.
+     */
+    List<String> swapSql() {
+        List<String> sql = new ArrayList<>();
+        sql.add("DROP TABLE IF EXISTS " + tableName);
+        sql.add("ALTER TABLE " + tableName + STAGING + " RENAME TO " + tableName);
+        sql.add("ALTER TABLE " + tableName + " RENAME CONSTRAINT " + primaryKeyName + STAGING + " TO " + primaryKeyName);
+        for (String index : indexes) {
+            sql.add("ALTER INDEX " + indexName(index) + STAGING + " RENAME TO " + indexName(index));
+        }
+        return sql;
+    }
+
+    private static String indexSpec(String index) {
+        return index.startsWith(UNIQUE) ? index.substring(UNIQUE.length()) : index;
+    }
+
+    private static String indexName(String index) {
+        String spec = indexSpec(index);
+        return spec.substring(0, spec.indexOf(' '));
+    }
+}
@@ -0,0 +1,80 @@
+package io.sustc.service.impl;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters of one service method, see {@link ServiceMetrics}. Statements and connection
+ * waits of nested service calls count towards the outer call as well.
+ */
+public final class MethodMetrics {
+
+    private final String name;
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder statements = new LongAdder();
+    private final LongAdder connectionWaitNanos = new LongAdder();
+    private final LatencyHistogram latencyMicros = new LatencyHistogram();
+    private final LatencyHistogram statementsPerCall = new LatencyHistogram();
+
+    MethodMetrics(String name) {
+        this.name = name;
+    }
+
+    void record(long elapsedNanos, long callStatements, long callConnectionWaitNanos, boolean failed) {
+        latencyMicros.record(elapsedNanos / 1_000);
+        statementsPerCall.record(callStatements);
+        statements.add(callStatements);
+        connectionWaitNanos.add(callConnectionWaitNanos);
+        if (failed) {
+            errors.increment();
+        }
+    }
+
+    /**
+     * e.g. {@code DanmuService.sendDanmu}
+     */
+    public String getName() {
+        return name;
+    }
+
+    public long getCalls() {
+        return latencyMicros.count();
+    }
+
+    /**
+     * Calls that ended with an exception.
+     */
+    public long getErrors() {
+        return errors.sum();
+    }
+
+    public long getLatencyMicros(double quantile) {
+        return latencyMicros.percentile(quantile);
+    }
+
+    public long getMaxLatencyMicros() {
+        return latencyMicros.max();
+    }
+
+    /**
+     * Statements executed plus commits, i.e. database round trips.
+     */
+    public long getStatements() {
+        return statements.sum();
+    }
+
+    public long getStatementsPerCall(double quantile) {
+        return statementsPerCall.percentile(quantile);
+    }
+
+    public double getMeanStatementsPerCall() {
+        long calls = getCalls();
+        return calls == 0 ? 0 : (double) getStatements() / calls;
+    }
+
+    /**
+     * Time spent waiting for a pooled connection.
+     */
+    public long getConnectionWaitMillis() {
+        return connectionWaitNanos.sum() / 1_000_000;
+    }
+}
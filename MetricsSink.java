@@ -0,0 +1,13 @@
+package io.sustc.service.impl;
+
+import java.util.List;
+
+/**
+ * Receives the service method counters of {@link ServiceMetrics} every
+ * {@code sustc.metrics.report-interval} seconds. Beans of this type are picked up next to the
+ * built-in log reporter; the counters are cumulative since startup.
+ */
+public interface MetricsSink {
+
+    void report(List<MethodMetrics> methods);
+}
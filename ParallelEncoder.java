@@ -0,0 +1,92 @@
+package io.sustc.service.impl;
+
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Encodes ranges of an import list on a fork-join pool while the table's writer thread sends
+ * finished ranges, in input order, through its {@link CopyImportSink}. Each table keeps at
+ * most {@code window} ranges encoded ahead of its writer, which bounds the memory held in
+ * encoded bytes. One encoder is shared by all tables of an import.
+ */
+final class ParallelEncoder implements AutoCloseable {
+
+    private final ForkJoinPool pool;
+    private final int rangeRecords;
+    private final int window;
+
+    ParallelEncoder(int parallelism, int rangeRecords) {
+        this.pool = new ForkJoinPool(Math.max(1, parallelism));
+        this.rangeRecords = Math.max(1, rangeRecords);
+        this.window = Math.max(2, parallelism);
+    }
+
+    /**
+     * Writes {@code records} from index {@code from} on, committing through
+     * {@link ImportSink#recordDone} after every range.
+     */
+    <T> void write(CopyImportSink sink, TableLoad<T> load, List<T> records, int from) throws SQLException {
+        Deque<ForkJoinTask<EncodingSink>> pending = new ArrayDeque<>();
+        int next = from;
+        try {
+            while (next < records.size() || !pending.isEmpty()) {
+                while (pending.size() < window && next < records.size()) {
+                    int start = next;
+                    int end = Math.min(start + rangeRecords, records.size());
+                    pending.add(pool.submit(() -> encode(sink, load, records, start, end)));
+                    next = end;
+                }
+
+                EncodingSink range = await(pending.poll());
+                sink.appendEncoded(range.chunks, range.rowCount());
+                sink.recordDone(range.lastOrdinal);
+            }
+        } finally {
+            for (ForkJoinTask<EncodingSink> task : pending) {
+                task.cancel(true);
+            }
+        }
+    }
+
+    private static <T> EncodingSink encode(ImportSink target, TableLoad<T> load, List<T> records,
+                                           int start, int end) throws SQLException {
+        long encodeStart = System.nanoTime();
+        EncodingSink range = new EncodingSink(target, end);
+        for (int i = start; i < end; i++) {
+            load.writer.write(range, records.get(i), i + 1);
+        }
+        range.completeStatement();
+        if (target.stats() != null) {
+            target.stats().addEncodeNanos(System.nanoTime() - encodeStart);
+        }
+        return range;
+    }
+
+    private static EncodingSink await(ForkJoinTask<EncodingSink> task) throws SQLException {
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while encoding import rows", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof SQLException) {
+                throw (SQLException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new SQLException("Encoding import rows failed", cause);
+        }
+    }
+
+    @Override
+    public void close() {
+        pool.shutdownNow();
+    }
+}
@@ -0,0 +1,126 @@
+package io.sustc.service.impl;
+
+import java.nio.charset.StandardCharsets;
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+
+/**
+ * Growable byte buffer that encodes tuples in PostgreSQL's binary COPY format.
+ * Not thread safe, every writer owns its own encoder.
+ */
+class PgBinaryEncoder {
+
+    static final byte[] HEADER = {
+            'P', 'G', 'C', 'O', 'P', 'Y', '\n', (byte) 0xFF, '\r', '\n', 0,
+            0, 0, 0, 0,   // flags
+            0, 0, 0, 0    // header extension length
+    };
+
+    static final byte[] TRAILER = {(byte) 0xFF, (byte) 0xFF};
+
+    // PostgreSQL timestamps count microseconds from 2000-01-01 00:00:00
+    private static final long PG_EPOCH_SECONDS = LocalDateTime.of(2000, 1, 1, 0, 0).toEpochSecond(ZoneOffset.UTC);
+
+    private byte[] buf;
+    private int size;
+
+    PgBinaryEncoder(int initialCapacity) {
+        this.buf = new byte[Math.max(64, initialCapacity)];
+    }
+
+    void startRow(int fieldCount) {
+        ensure(2);
+        putShort(fieldCount);
+    }
+
+    void int4(int value) {
+        ensure(8);
+        putInt(4);
+        putInt(value);
+    }
+
+    void int8(long value) {
+        ensure(12);
+        putInt(8);
+        putLong(value);
+    }
+
+    void float8(double value) {
+        int8(Double.doubleToLongBits(value));
+    }
+
+    void text(String value) {
+        if (value == null) {
+            putNull();
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        ensure(4 + bytes.length);
+        putInt(bytes.length);
+        System.arraycopy(bytes, 0, buf, size, bytes.length);
+        size += bytes.length;
+    }
+
+    void timestamp(Timestamp value) {
+        if (value == null) {
+            putNull();
+            return;
+        }
+        // TIMESTAMP columns store the wall clock time, same as what setTimestamp sends
+        LocalDateTime local = value.toLocalDateTime();
+        long seconds = local.toEpochSecond(ZoneOffset.UTC) - PG_EPOCH_SECONDS;
+        int8(seconds * 1_000_000 + local.getNano() / 1_000);
+    }
+
+    void raw(byte[] bytes) {
+        ensure(bytes.length);
+        System.arraycopy(bytes, 0, buf, size, bytes.length);
+        size += bytes.length;
+    }
+
+    byte[] array() {
+        return buf;
+    }
+
+    int size() {
+        return size;
+    }
+
+    byte[] toByteArray() {
+        return Arrays.copyOf(buf, size);
+    }
+
+    void reset() {
+        size = 0;
+    }
+
+    private void putNull() {
+        ensure(4);
+        putInt(-1);
+    }
+
+    private void ensure(int extra) {
+        if (size + extra > buf.length) {
+            buf = Arrays.copyOf(buf, Math.max(buf.length * 2, size + extra));
+        }
+    }
+
+    private void putShort(int v) {
+        buf[size++] = (byte) (v >>> 8);
+        buf[size++] = (byte) v;
+    }
+
+    private void putInt(int v) {
+        buf[size++] = (byte) (v >>> 24);
+        buf[size++] = (byte) (v >>> 16);
+        buf[size++] = (byte) (v >>> 8);
+        buf[size++] = (byte) v;
+    }
+
+    private void putLong(long v) {
+        putInt((int) (v >>> 32));
+        putInt((int) v);
+    }
+}
@@ -0,0 +1,97 @@
+package io.sustc.service.impl;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.jdbc.DataSourceBuilder;
+import org.springframework.stereotype.Component;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * Picks the DataSource of read-only service calls. With {@code sustc.replica.url} set those
+ * calls go to that database, a streaming replica of the primary or, in tests, a second local
+ * PostgreSQL with the same data, as long as {@link ReplicaStaleness} allows. Without it, or
+ * while the replica is too far behind or unreachable, they stay on the primary.
+ * <p>
+ * The replica is not exposed as a bean, so the application keeps exactly one DataSource to
+ * autowire.
+ */
+@Component
+@Slf4j
+public class ReplicaRouter {
+
+    // 0 when the server is not a standby or has replayed everything it received
+    private static final String LAG_SQL = "SELECT CASE " +
+            "WHEN NOT pg_is_in_recovery() THEN 0 " +
+            "WHEN pg_last_wal_receive_lsn() = pg_last_wal_replay_lsn() THEN 0 " +
+            "ELSE COALESCE(EXTRACT(EPOCH FROM now() - pg_last_xact_replay_timestamp()) * 1000, 0) END";
+
+    private final DataSource replica;
+    private final ReplicaStaleness staleness;
+    private final long maxLagMillis;
+    private final long lagCheckMillis;
+
+    private volatile long checkedAt;
+    private volatile boolean usable;
+
+    public ReplicaRouter(@Value("${sustc.replica.url:}") String url,
+                         @Value("${sustc.replica.username:}") String username,
+                         @Value("${sustc.replica.password:}") String password,
+                         @Value("${sustc.replica.staleness:BOUNDED}") ReplicaStaleness staleness,
+                         @Value("${sustc.replica.max-lag-ms:1000}") long maxLagMillis,
+                         @Value("${sustc.replica.lag-check-ms:500}") long lagCheckMillis) {
+        this.replica = url.isEmpty() || staleness == ReplicaStaleness.PRIMARY ? null
+                : DataSourceBuilder.create().url(url).username(username).password(password).build();
+        this.staleness = staleness;
+        this.maxLagMillis = maxLagMillis;
+        this.lagCheckMillis = lagCheckMillis;
+        if (replica != null) {
+            log.info("Read-only calls go to the replica at {} ({})", url, staleness);
+        }
+    }
+
+    /**
+     * @return the replica if a read-only call may use it now, {@code null} for the primary
+     */
+    DataSource readSource() {
+        if (replica == null) {
+            return null;
+        }
+        if (staleness == ReplicaStaleness.ANY) {
+            return replica;
+        }
+        long now = System.currentTimeMillis();
+        if (now - checkedAt >= lagCheckMillis) {
+            // one caller refreshes, the others keep the last verdict meanwhile
+            synchronized (this) {
+                if (now - checkedAt >= lagCheckMillis) {
+                    usable = checkLag();
+                    checkedAt = System.currentTimeMillis();
+                }
+            }
+        }
+        return usable ? replica : null;
+    }
+
+    private boolean checkLag() {
+        try (Connection conn = replica.getConnection();
+             Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery(LAG_SQL)) {
+            rs.next();
+            double lag = rs.getDouble(1);
+            if (lag > maxLagMillis && usable) {
+                log.warn("Replica is {} ms behind, reading from the primary", (long) lag);
+            }
+            return lag <= maxLagMillis;
+        } catch (SQLException e) {
+            if (usable) {
+                log.warn("Replica unreachable, reading from the primary: {}", e.getMessage());
+            }
+            return false;
+        }
+    }
+}
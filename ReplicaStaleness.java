@@ -0,0 +1,23 @@
+package io.sustc.service.impl;
+
+/**
+ * How stale a replica may be before read-only calls go back to the primary, see
+ * {@link ReplicaRouter}.
+ */
+public enum ReplicaStaleness {
+
+    /**
+     * Read from the replica whatever its lag.
+     */
+    ANY,
+
+    /**
+     * Read from the replica while its replay lag is at most {@code sustc.replica.max-lag-ms}.
+     */
+    BOUNDED,
+
+    /**
+     * Never read from the replica, every call runs on the primary.
+     */
+    PRIMARY
+}
@@ -0,0 +1,142 @@
+package io.sustc.service.impl;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency, error, round-trip and connection-wait counters per service method. Calls are
+ * timed by {@link ServiceMetricsPostProcessor}, statements and connection waits are reported
+ * by {@link ConnectionScope} and charged to the calls running on the current thread.
+ */
+@Component
+@Slf4j
+public class ServiceMetrics {
+
+    private final Map<String, MethodMetrics> methods = new ConcurrentHashMap<>();
+
+    private final ThreadLocal<Frame> current = new ThreadLocal<>();
+
+    @Autowired(required = false)
+    private List<MetricsSink> sinks = List.of();
+
+    /**
+     * One running service call, nested calls link to the call they run in.
+     */
+    static final class Frame {
+        private final MethodMetrics metrics;
+        private final Frame parent;
+        private final long start = System.nanoTime();
+        private long statements;
+        private long connectionWaitNanos;
+
+        private Frame(MethodMetrics metrics, Frame parent) {
+            this.metrics = metrics;
+            this.parent = parent;
+        }
+    }
+
+    public ServiceMetrics(@Value("${sustc.metrics.report-interval:60}") long reportInterval) {
+        if (reportInterval > 0) {
+            ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "metrics-report");
+                thread.setDaemon(true);
+                return thread;
+            });
+            reporter.scheduleWithFixedDelay(this::report, reportInterval, reportInterval, TimeUnit.SECONDS);
+        }
+    }
+
+    Frame enter(String method) {
+        Frame frame = new Frame(methods.computeIfAbsent(method, MethodMetrics::new), current.get());
+        current.set(frame);
+        return frame;
+    }
+
+    void exit(Frame frame, boolean failed) {
+        frame.metrics.record(System.nanoTime() - frame.start, frame.statements, frame.connectionWaitNanos, failed);
+        Frame parent = frame.parent;
+        if (parent == null) {
+            current.remove();
+        } else {
+            parent.statements += frame.statements;
+            parent.connectionWaitNanos += frame.connectionWaitNanos;
+            current.set(parent);
+        }
+    }
+
+    /**
+     * @return the name of the innermost service call on this thread, {@code null} outside of one
+     */
+    String currentMethod() {
+        Frame frame = current.get();
+        return frame == null ? null : frame.metrics.getName();
+    }
+
+    /**
+     * One database round trip of the current call.
+     */
+    void statementExecuted() {
+        Frame frame = current.get();
+        if (frame != null) {
+            frame.statements++;
+        }
+    }
+
+    void connectionWait(long nanos) {
+        Frame frame = current.get();
+        if (frame != null) {
+            frame.connectionWaitNanos += nanos;
+        }
+    }
+
+    /**
+     * @return the counters of every method called so far, by name
+     */
+    public List<MethodMetrics> snapshot() {
+        List<MethodMetrics> snapshot = new ArrayList<>(methods.values());
+        snapshot.sort(Comparator.comparing(MethodMetrics::getName));
+        return snapshot;
+    }
+
+    /**
+     * Writes the current counters to the log.
+     */
+    public void dump() {
+        StringBuilder table = new StringBuilder(String.format("%n%-45s %9s %6s %9s %9s %9s %9s %7s %6s %9s",
+                "method", "calls", "errors", "p50 us", "p99 us", "p999 us", "max us", "rt/call", "rt p99", "wait ms"));
+        for (MethodMetrics method : snapshot()) {
+            table.append(String.format("%n%-45s %9d %6d %9d %9d %9d %9d %7.1f %6d %9d",
+                    method.getName(), method.getCalls(), method.getErrors(),
+                    method.getLatencyMicros(0.5), method.getLatencyMicros(0.99), method.getLatencyMicros(0.999),
+                    method.getMaxLatencyMicros(), method.getMeanStatementsPerCall(),
+                    method.getStatementsPerCall(0.99), method.getConnectionWaitMillis()));
+        }
+        log.info("Service metrics (rt = database round trips):{}", table);
+    }
+
+    private void report() {
+        if (methods.isEmpty()) {
+            return;
+        }
+        dump();
+        List<MethodMetrics> snapshot = snapshot();
+        for (MetricsSink sink : sinks) {
+            try {
+                sink.report(snapshot);
+            } catch (RuntimeException e) {
+                log.warn("Metrics sink {} failed", sink.getClass().getName(), e);
+            }
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package io.sustc.service.impl;
+
+import io.sustc.service.DanmuService;
+import io.sustc.service.DatabaseService;
+import io.sustc.service.RecommenderService;
+import io.sustc.service.UserService;
+import io.sustc.service.VideoService;
+import org.aopalliance.intercept.MethodInterceptor;
+import org.springframework.aop.framework.ProxyFactory;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.stereotype.Component;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Wraps the service beans in a class-based proxy that times every public method through
+ * {@link ServiceMetrics}. Class-based, so code that injects an implementation class, like the
+ * streaming import of DatabaseServiceImpl, keeps working. Calls a service makes on itself do
+ * not pass the proxy and count towards the outer call.
+ */
+@Component
+public class ServiceMetricsPostProcessor implements BeanPostProcessor {
+
+    private static final List<Class<?>> SERVICES = List.of(
+            DanmuService.class, DatabaseService.class, RecommenderService.class, UserService.class, VideoService.class);
+
+    private final ServiceMetrics metrics;
+
+    public ServiceMetricsPostProcessor(ServiceMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    @Override
+    public Object postProcessAfterInitialization(Object bean, String beanName) {
+        Class<?> service = null;
+        for (Class<?> candidate : SERVICES) {
+            if (candidate.isInstance(bean)) {
+                service = candidate;
+            }
+        }
+        if (service == null) {
+            return bean;
+        }
+
+        Map<Method, String> names = methodNames(bean.getClass(), service.getSimpleName());
+        ProxyFactory factory = new ProxyFactory(bean);
+        factory.setProxyTargetClass(true);
+        factory.addAdvice((MethodInterceptor) invocation -> {
+            String name = names.get(invocation.getMethod());
+            if (name == null) {
+                return invocation.proceed();
+            }
+            ServiceMetrics.Frame frame = metrics.enter(name);
+            boolean failed = true;
+            try {
+                Object result = invocation.proceed();
+                failed = false;
+                return result;
+            } finally {
+                metrics.exit(frame, failed);
+            }
+        });
+        return factory.getProxy();
+    }
+
+    /**
+     * Public methods of the implementation, overloads tell apart by their first parameter type,
+     * e.g. {@code DatabaseService.importData(Iterator)}.
+     */
+    private static Map<Method, String> methodNames(Class<?> type, String service) {
+        Map<String, Integer> overloads = new HashMap<>();
+        for (Method method : type.getMethods()) {
+            if (method.getDeclaringClass() != Object.class) {
+                overloads.merge(method.getName(), 1, Integer::sum);
+            }
+        }
+        Map<Method, String> names = new HashMap<>();
+        for (Method method : type.getMethods()) {
+            if (method.getDeclaringClass() == Object.class || !Modifier.isPublic(method.getModifiers())) {
+                continue;
+            }
+            String name = service + "." + method.getName();
+            if (overloads.get(method.getName()) > 1 && method.getParameterCount() > 0) {
+                name += "(" + method.getParameterTypes()[0].getSimpleName() + ")";
+            }
+            names.put(method, name);
+        }
+        return names;
+    }
+}
@@ -0,0 +1,208 @@
+package io.sustc.service.impl;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.sql.DataSource;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded ring buffer of the statements that ran longer than
+ * {@code sustc.slow-query.threshold-ms}, fed by {@link ConnectionScope}. Each entry keeps its
+ * bind parameters and the service method it ran in, so {@link #explain(long)} can rerun it
+ * under {@code EXPLAIN (ANALYZE, BUFFERS)} later. The rerun happens in a transaction that is
+ * rolled back, a slow UPDATE is executed but leaves nothing behind.
+ */
+@Component
+@Slf4j
+public class SlowQueryLog {
+
+    /**
+     * One {@code setXxx(index, ...)} call on a prepared statement, replayed for EXPLAIN.
+     */
+    static final class Bind {
+        final Method method;
+        final Object[] args;
+
+        Bind(Method method, Object[] args) {
+            this.method = method;
+            this.args = args;
+        }
+
+        @Override
+        public String toString() {
+            return args.length > 1 ? String.valueOf(args[1]) : "?";
+        }
+    }
+
+    public static final class SlowQuery {
+        private final long id;
+        private final Instant at = Instant.now();
+        private final String sql;
+        private final List<Bind> binds;
+        private final String method;
+        private final long elapsedMillis;
+        private volatile String plan;
+
+        private SlowQuery(long id, String sql, List<Bind> binds, String method, long elapsedMillis) {
+            this.id = id;
+            this.sql = sql;
+            this.binds = binds;
+            this.method = method;
+            this.elapsedMillis = elapsedMillis;
+        }
+
+        public long getId() {
+            return id;
+        }
+
+        public Instant getAt() {
+            return at;
+        }
+
+        public String getSql() {
+            return sql;
+        }
+
+        /**
+         * Bind parameters in index order, rendered with {@code String.valueOf}.
+         */
+        public List<String> getParameters() {
+            List<String> parameters = new ArrayList<>(binds.size());
+            for (Bind bind : binds) {
+                parameters.add(bind.toString());
+            }
+            return parameters;
+        }
+
+        /**
+         * The service method the statement ran in, {@code null} outside of one.
+         */
+        public String getMethod() {
+            return method;
+        }
+
+        public long getElapsedMillis() {
+            return elapsedMillis;
+        }
+
+        /**
+         * The plan of the last {@link SlowQueryLog#explain(long)}, {@code null} before that.
+         */
+        public String getPlan() {
+            return plan;
+        }
+    }
+
+    private final DataSource dataSource;
+    private final long thresholdNanos;
+    private final SlowQuery[] ring;
+    private final AtomicLong sequence = new AtomicLong();
+
+    public SlowQueryLog(DataSource dataSource,
+                        @Value("${sustc.slow-query.threshold-ms:500}") long thresholdMillis,
+                        @Value("${sustc.slow-query.capacity:128}") int capacity) {
+        this.dataSource = dataSource;
+        // a negative threshold turns the log off
+        this.thresholdNanos = thresholdMillis < 0 ? Long.MAX_VALUE : thresholdMillis * 1_000_000;
+        this.ring = new SlowQuery[Math.max(capacity, 1)];
+    }
+
+    boolean isSlow(long elapsedNanos) {
+        return elapsedNanos >= thresholdNanos;
+    }
+
+    /**
+     * @param binds the binds by parameter index, copied
+     */
+    void record(String sql, Map<Integer, Bind> binds, String method, long elapsedNanos) {
+        long id = sequence.incrementAndGet();
+        SlowQuery query = new SlowQuery(id, sql, new ArrayList<>(binds.values()), method, elapsedNanos / 1_000_000);
+        synchronized (ring) {
+            ring[(int) (id % ring.length)] = query;
+        }
+        log.warn("Slow query #{} in {} took {} ms: {} {}", id, method, query.elapsedMillis, sql, query.getParameters());
+    }
+
+    /**
+     * @return the buffered slow queries, oldest first
+     */
+    public List<SlowQuery> snapshot() {
+        List<SlowQuery> snapshot = new ArrayList<>();
+        synchronized (ring) {
+            long last = sequence.get();
+            for (long id = Math.max(1, last - ring.length + 1); id <= last; id++) {
+                SlowQuery query = ring[(int) (id % ring.length)];
+                if (query != null && query.id == id) {
+                    snapshot.add(query);
+                }
+            }
+        }
+        return snapshot;
+    }
+
+    /**
+     * Runs the buffered query {@code id} again under EXPLAIN (ANALYZE, BUFFERS) and keeps the plan.
+     *
+     * @return the plan, or {@code null} when the query has left the buffer
+     */
+    public String explain(long id) throws SQLException {
+        SlowQuery query;
+        synchronized (ring) {
+            query = ring[(int) (id % ring.length)];
+        }
+        if (query == null || query.id != id) {
+            return null;
+        }
+
+        StringBuilder plan = new StringBuilder();
+        try (Connection conn = dataSource.getConnection()) {
+            conn.setAutoCommit(false);
+            try (PreparedStatement stmt = conn.prepareStatement("EXPLAIN (ANALYZE, BUFFERS) " + query.sql)) {
+                for (Bind bind : query.binds) {
+                    try {
+                        bind.method.invoke(stmt, bind.args);
+                    } catch (IllegalAccessException | InvocationTargetException e) {
+                        throw new SQLException("Could not replay " + bind.method.getName(), e);
+                    }
+                }
+                try (ResultSet rs = stmt.executeQuery()) {
+                    while (rs.next()) {
+                        plan.append(rs.getString(1)).append('\n');
+                    }
+                }
+            } finally {
+                conn.rollback();
+                conn.setAutoCommit(true);
+            }
+        }
+        query.plan = plan.toString();
+        return query.plan;
+    }
+
+    /**
+     * Writes the buffer, with the plans explained so far, to the log.
+     */
+    public void dump() {
+        StringBuilder dump = new StringBuilder();
+        for (SlowQuery query : snapshot()) {
+            dump.append(String.format("%n#%d %s %s %d ms%n  %s%n  %s", query.id, query.at, query.method,
+                    query.elapsedMillis, query.sql, query.getParameters()));
+            if (query.plan != null) {
+                dump.append("\n  ").append(query.plan.replace("\n", "\n  "));
+            }
+        }
+        log.info("Slow queries:{}", dump);
+    }
+}
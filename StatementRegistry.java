@@ -0,0 +1,139 @@
+package io.sustc.service.impl;
+
+import lombok.extern.slf4j.Slf4j;
+import org.postgresql.PGStatement;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Catalog of every statement the services prepare through {@link ConnectionScope}. Each one
+ * is switched to a server-side prepare from its first execution, and pgjdbc keeps the
+ * server-side statement, and with it the plan, in its per-connection cache keyed by the SQL
+ * text. Preparing the same SQL again on the same physical connection reuses it.
+ * <p>
+ * pgjdbc does not expose that cache, so the hit count here is an estimate from a model of it:
+ * an LRU of {@code sustc.statements.cache-size} queries per connection, keep it in line with
+ * {@code preparedStatementCacheQueries} on the JDBC URL. Statements prepared outside
+ * {@link ConnectionScope} are not seen and evictions by the size limit in bytes are not modeled.
+ */
+@Component
+@Slf4j
+public class StatementRegistry {
+
+    /**
+     * Counters of one SQL text.
+     */
+    public static final class StatementStats {
+        private final String sql;
+        private final LongAdder prepares = new LongAdder();
+        private final LongAdder estimatedHits = new LongAdder();
+
+        private StatementStats(String sql) {
+            this.sql = sql;
+        }
+
+        public String getSql() {
+            return sql;
+        }
+
+        public long getPrepares() {
+            return prepares.sum();
+        }
+
+        /**
+         * Prepares that likely found the statement already prepared on their connection,
+         * estimated from the model of the driver's cache.
+         */
+        public long getEstimatedHits() {
+            return estimatedHits.sum();
+        }
+    }
+
+    private final int prepareThreshold;
+    private final int cacheSize;
+
+    private final Map<String, StatementStats> statements = new ConcurrentHashMap<>();
+
+    // physical connection -> SQL prepared on it, least recently used first
+    private final Map<Object, Map<String, Boolean>> prepared = Collections.synchronizedMap(new WeakHashMap<>());
+
+    public StatementRegistry(@Value("${sustc.statements.prepare-threshold:1}") int prepareThreshold,
+                             @Value("${sustc.statements.cache-size:256}") int cacheSize,
+                             @Value("${sustc.statements.report-interval:0}") long reportInterval) {
+        this.prepareThreshold = prepareThreshold;
+        this.cacheSize = cacheSize;
+        if (reportInterval > 0) {
+            ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "statement-report");
+                thread.setDaemon(true);
+                return thread;
+            });
+            reporter.scheduleWithFixedDelay(this::report, reportInterval, reportInterval, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Registers a statement just prepared on {@code physical} and switches it to a server-side
+     * prepare.
+     */
+    void prepared(Object physical, String sql, PreparedStatement stmt) throws SQLException {
+        StatementStats stats = statements.computeIfAbsent(sql, StatementStats::new);
+        stats.prepares.increment();
+        if (isLikelyCached(physical, sql)) {
+            stats.estimatedHits.increment();
+        }
+        if (prepareThreshold > 0 && stmt.isWrapperFor(PGStatement.class)) {
+            stmt.unwrap(PGStatement.class).setPrepareThreshold(prepareThreshold);
+        }
+    }
+
+    private boolean isLikelyCached(Object physical, String sql) {
+        Map<String, Boolean> cache;
+        synchronized (prepared) {
+            cache = prepared.computeIfAbsent(physical, c -> new LinkedHashMap<String, Boolean>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+                    return size() > cacheSize;
+                }
+            });
+        }
+        // a physical connection is used by one thread at a time
+        synchronized (cache) {
+            return cache.put(sql, Boolean.TRUE) != null;
+        }
+    }
+
+    /**
+     * @return the counters of every statement seen so far, most prepared first
+     */
+    public List<StatementStats> snapshot() {
+        List<StatementStats> snapshot = new ArrayList<>(statements.values());
+        snapshot.sort(Comparator.comparingLong(StatementStats::getPrepares).reversed());
+        return snapshot;
+    }
+
+    private void report() {
+        List<StatementStats> snapshot = snapshot();
+        StringBuilder report = new StringBuilder();
+        for (StatementStats stats : snapshot.subList(0, Math.min(10, snapshot.size()))) {
+            report.append(String.format("%n%10d prepares %5.1f%% est. hits  %s", stats.getPrepares(),
+                    100.0 * stats.getEstimatedHits() / Math.max(stats.getPrepares(), 1), stats.getSql()));
+        }
+        log.info("{} distinct statements, top 10:{}", snapshot.size(), report);
+    }
+}
@@ -0,0 +1,194 @@
+package io.sustc.service.impl;
+
+import io.sustc.dto.DanmuRecord;
+import io.sustc.dto.UserRecord;
+import io.sustc.dto.VideoRecord;
+
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * How the rows of one table are derived from one kind of import record. The same writers
+ * serve the list import, where every table walks the list on its own, and the streaming
+ * import, where each parsed record is handed to all tables fed by its kind.
+ */
+final class TableLoad<T> {
+
+    @FunctionalInterface
+    interface RowWriter<T> {
+        /**
+         * @param ordinal 1-based position of the record in its input
+         */
+        void write(ImportSink sink, T record, long ordinal) throws SQLException;
+    }
+
+    /**
+     * Danmu records name their video by bv, {@code videoIds} maps it to the vid the video load
+     * assigns (see {@link #videoIds}).
+     */
+    static List<TableLoad<DanmuRecord>> danmu(Map<String, Integer> videoIds) {
+        return List.of(
+                new TableLoad<>(ImportTable.DANMU, "danmu_id, vid, mid, time, content, post_time",
+                        (sink, record, ordinal) -> writeDanmu(sink, record, ordinal, videoIds)),
+                new TableLoad<>(ImportTable.DANMU_LIKE, "danmu_id, liked_by, vid",
+                        (sink, record, ordinal) -> writeDanmuLike(sink, record, ordinal, videoIds)));
+    }
+
+    static final List<TableLoad<UserRecord>> USER = List.of(
+            new TableLoad<>(ImportTable.USER_BASIC,
+                    "mid, name, sex, birthday, level, coin, sign, identity_s, password, qq, wechat",
+                    TableLoad::writeUser),
+            new TableLoad<>(ImportTable.USER_QQ, "mid, qq", TableLoad::writeUserQq),
+            new TableLoad<>(ImportTable.USER_WECHAT, "mid, wechat", TableLoad::writeUserWechat),
+            new TableLoad<>(ImportTable.FOLLOWING, "user_mid, following", TableLoad::writeFollowing));
+
+    static final List<TableLoad<VideoRecord>> VIDEO = List.of(
+            new TableLoad<>(ImportTable.VIDEO, "vid, bv, title, owner_mid, owner_name, commit_time, " +
+                    "review_time, public_time, duration, description, reviewer, number_of_viewer",
+                    TableLoad::writeVideo),
+            new TableLoad<>(ImportTable.VIDEO_LIKE, "vid, liked_by", TableLoad::writeVideoLike),
+            new TableLoad<>(ImportTable.VIDEO_COIN, "vid, coin_by", TableLoad::writeVideoCoin),
+            new TableLoad<>(ImportTable.VIDEO_FAVORITE, "vid, favorite_by", TableLoad::writeVideoFavorite),
+            new TableLoad<>(ImportTable.VIEWER_DURATION, "vid, viewer_mid, view_time", TableLoad::writeViewerDuration));
+
+    final ImportTable table;
+    final String columns;
+    final RowWriter<T> writer;
+
+    private TableLoad(ImportTable table, String columns, RowWriter<T> writer) {
+        this.table = table;
+        this.columns = columns;
+        this.writer = writer;
+    }
+
+    /**
+     * The n-th video record gets vid n, the same rule {@link #writeVideo} follows.
+     */
+    static Map<String, Integer> videoIds(List<VideoRecord> videoRecords) {
+        Map<String, Integer> videoIds = new HashMap<>(videoRecords.size() * 2);
+        int vid = 0;
+        for (VideoRecord videoRecord : videoRecords) {
+            videoIds.put(videoRecord.getBv(), ++vid);
+        }
+        return videoIds;
+    }
+
+    private static void writeDanmu(ImportSink sink, DanmuRecord danmuRecord, long ordinal,
+                                   Map<String, Integer> videoIds) throws SQLException {
+        Integer vid = videoIds.get(danmuRecord.getBv());
+        if (vid == null) {
+            // 视频不存在的弹幕查不到，也不导入，计入 skipped
+            sink.skipRecord();
+            return;
+        }
+        // ids are written explicitly so that a resumed import hands out the same ids as a fresh one
+        sink.int4((int) ordinal)
+                .int4(vid)
+                .int8(danmuRecord.getMid())
+                .float8(danmuRecord.getTime())
+                .text(danmuRecord.getContent())
+                .timestamp(danmuRecord.getPostTime())
+                .endRow();
+    }
+
+    private static void writeDanmuLike(ImportSink sink, DanmuRecord danmuRecord, long ordinal,
+                                       Map<String, Integer> videoIds) throws SQLException {
+        Integer vid = videoIds.get(danmuRecord.getBv());
+        if (vid == null) {
+            sink.skipRecord();
+            return;
+        }
+        // the n-th danmu record has danmu_id n
+        for (long likedBy : danmuRecord.getLikedBy()) {
+            sink.int8(ordinal).int8(likedBy).int4(vid).endRow();
+        }
+    }
+
+    private static void writeUser(ImportSink sink, UserRecord userRecord, long ordinal) throws SQLException {
+        sink.int8(userRecord.getMid())
+                .text(userRecord.getName())
+                .text(userRecord.getSex())
+                .text(userRecord.getBirthday())
+                .int4(userRecord.getLevel())
+                .int4(userRecord.getCoin())
+                .text(userRecord.getSign())
+                .text(String.valueOf(userRecord.getIdentity()))
+                .text(userRecord.getPassword())
+                .text(userRecord.getQq())
+                .text(userRecord.getWechat())
+                .endRow();
+    }
+
+    private static void writeUserQq(ImportSink sink, UserRecord userRecord, long ordinal) throws SQLException {
+        String qq = userRecord.getQq();
+        // Insert non-empty QQ
+        if (qq != null && !qq.isEmpty()) {
+            sink.int8(userRecord.getMid()).text(qq).endRow();
+        }
+    }
+
+    private static void writeUserWechat(ImportSink sink, UserRecord userRecord, long ordinal) throws SQLException {
+        String wechat = userRecord.getWechat();
+        // Insert non-empty WeChat
+        if (wechat != null && !wechat.isEmpty()) {
+            sink.int8(userRecord.getMid()).text(wechat).endRow();
+        }
+    }
+
+    private static void writeFollowing(ImportSink sink, UserRecord userRecord, long ordinal) throws SQLException {
+        long userMid = userRecord.getMid();
+        for (long following : userRecord.getFollowing()) {
+            sink.int8(userMid).int8(following).endRow();
+        }
+    }
+
+    private static void writeVideo(ImportSink sink, VideoRecord videoRecord, long ordinal) throws SQLException {
+        // the n-th video record has vid n
+        sink.int4((int) ordinal)
+                .text(videoRecord.getBv())
+                .text(videoRecord.getTitle())
+                .int8(videoRecord.getOwnerMid())
+                .text(videoRecord.getOwnerName())
+                .timestamp(videoRecord.getCommitTime())
+                .timestamp(videoRecord.getReviewTime())
+                .timestamp(videoRecord.getPublicTime())
+                .float8(videoRecord.getDuration())
+                .text(videoRecord.getDescription())
+                .int8(videoRecord.getReviewer())
+                .int8(videoRecord.getViewerMids().length)
+                .endRow();
+    }
+
+    private static void writeVideoLike(ImportSink sink, VideoRecord videoRecord, long ordinal) throws SQLException {
+        int vid = (int) ordinal;
+        for (long likedBy : videoRecord.getLike()) {
+            sink.int4(vid).int8(likedBy).endRow();
+        }
+    }
+
+    private static void writeVideoCoin(ImportSink sink, VideoRecord videoRecord, long ordinal) throws SQLException {
+        int vid = (int) ordinal;
+        for (long coinBy : videoRecord.getCoin()) {
+            sink.int4(vid).int8(coinBy).endRow();
+        }
+    }
+
+    private static void writeVideoFavorite(ImportSink sink, VideoRecord videoRecord, long ordinal) throws SQLException {
+        int vid = (int) ordinal;
+        for (long favoriteBy : videoRecord.getFavorite()) {
+            sink.int4(vid).int8(favoriteBy).endRow();
+        }
+    }
+
+    private static void writeViewerDuration(ImportSink sink, VideoRecord videoRecord, long ordinal) throws SQLException {
+        int vid = (int) ordinal;
+        long[] viewerMids = videoRecord.getViewerMids();
+        float[] viewTimes = videoRecord.getViewTime();
+
+        for (int i = 0; i < viewerMids.length; i++) {
+            sink.int4(vid).int8(viewerMids[i]).float8(viewTimes[i]).endRow();
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package io.sustc.service.impl;
+
+/**
+ * How {@link DatabaseServiceImpl#truncate} empties the database.
+ */
+public enum TruncateMode {
+
+    /**
+     * One {@code TRUNCATE ... RESTART IDENTITY} over the tables the service knows about, then
+     * mid_max is reset to zero. Leftover work tables are dropped.
+     */
+    FAST,
+
+    /**
+     * The original PL/pgSQL loop, one {@code TRUNCATE ... CASCADE} per table in the public schema.
+     */
+    LEGACY,
+
+    /**
+     * Drops and recreates the public schema, then creates the tables again with their keys and
+     * indexes. Also gets rid of anything created outside the service.
+     */
+    DROP_SCHEMA
+}
@@ -7,16 +7,32 @@ import io.sustc.service.UserService;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
-import javax.sql.DataSource;
 import java.sql.*;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 @Service
 public class UserServiceImpl implements UserService {
 
     @Autowired
-    private DataSource dataSource;
+    private ConnectionScope connections;
+
+    @Autowired
+    private VideoKeys videoKeys;
+
+    @Autowired
+    private IdentityResolver identities;
+
+    @Autowired
+    private DanmuTimelineIndex timelines;
+
+    @Autowired
+    private DanmuWriteBuffer writes;
+
+    @Autowired
+    private HotspotHistogram hotspots;
 
     @Override
     public long register(RegisterUserReq req) {
@@ -34,7 +50,7 @@ public class UserServiceImpl implements UserService {
         }
 
         // 检查qq和wechat是否已存在
-        try (Connection conn = dataSource.getConnection()) {
+        try (Connection conn = connections.getConnection()) {
             if (qqExists(conn, req.getQq()) || wechatExists(conn, req.getWechat())) {
                 return -1;
             }
@@ -44,6 +60,8 @@ public class UserServiceImpl implements UserService {
             // 插入qq和wechat表格
             insertQQWeChat(conn, mid, req.getQq(), req.getWechat());
 
+            // 提交之后才缓存，提交失败不会留下不存在的用户
+            connections.afterCommit(() -> identities.registered(mid, IdentityResolver.USER, req.getQq(), req.getWechat()));
             return mid;
         } catch (SQLException e) {
             handleSQLException(e);
@@ -53,16 +71,16 @@ public class UserServiceImpl implements UserService {
 
     @Override
     public boolean deleteAccount(AuthInfo auth, long mid) {
-        // Step 1: Check if authentication is valid
-        if (!isExistInUserBasic(mid)) {
-            return false;
-        }
-        if (!isAuthValid(auth)) {
-            return false;
-        }
+        try (Connection conn = connections.getConnection()) {
+            // Step 1: Check if authentication is valid
+            if (!isExistInUserBasic(mid)) {
+                return false;
+            }
+            if (!isAuthValid(auth)) {
+                return false;
+            }
 
-        auth.setMid(AuthMidFromQQorWeChat(auth));
-        try (Connection conn = dataSource.getConnection()) {
+            auth.setMid(AuthMidFromQQorWeChat(auth));
 
             // Step 3: Check the relationship between authenticated user and user to be deleted
 
@@ -70,6 +88,10 @@ public class UserServiceImpl implements UserService {
                 return false;
             }
             // Step 4: Delete records associated with the user
+            // 排队中的弹幕先写进去，和用户的其他弹幕一起删掉
+            writes.flush();
+            // 之后排队的弹幕写入时要等这一行的锁，提交之后就被跳过了
+            lockUser(conn, mid);
             deleteFromDanmu(conn, mid);
             deleteFromDanmuLike(conn, mid);
             deleteFromUserQQ(conn, mid);
@@ -85,6 +107,9 @@ public class UserServiceImpl implements UserService {
 
             // Step 5: Delete the user record
             deleteUser(conn, mid);
+            identities.deleted(mid);
+            // 提交前查询的线程可能又把用户缓存回去了，提交后再清一次
+            connections.afterCommit(() -> identities.deleted(mid));
 
             return true;
         } catch (SQLException e) {
@@ -94,55 +119,49 @@ public class UserServiceImpl implements UserService {
         }
     }
     private boolean checkRelationship(Connection conn, AuthInfo auth, long mid) throws SQLException {
-        String selectSQL = "SELECT identity_s FROM user_basic WHERE mid = ?";
-        try (PreparedStatement stmt = conn.prepareStatement(selectSQL)) {
-            stmt.setLong(1, auth.getMid());
+        String identity = identities.identity(conn, auth.getMid());
 
-            ResultSet rs = stmt.executeQuery();
-            if (rs.next()) {
-                String identity = rs.getString("identity_s");
-
-                // Define identity values
-                String superuser = "SUPERUSER";
-                String regularuser = "USER";
-
-                // Check the relationship based on identity
-                if (superuser.equals(identity)) {
-                    // The authenticated user is a superuser
-                    if (auth.getMid() == mid) {
-                        // Superuser can delete their own account
-                        return true;
-                    } else {
-                        // Superuser cannot delete other superusers
-                        return regularuser.equals(getIdentity(conn, mid));
-                    }
-                }else if (regularuser.equals(identity)) {
-                    // The authenticated user is a regular user, can only delete own account
-                    return auth.getMid() == mid;
-                }
+        // Check the relationship based on identity
+        if (IdentityResolver.SUPERUSER.equals(identity)) {
+            // The authenticated user is a superuser
+            if (auth.getMid() == mid) {
+                // Superuser can delete their own account
+                return true;
+            } else {
+                // Superuser cannot delete other superusers
+                return IdentityResolver.USER.equals(identities.identity(conn, mid));
             }
+        } else if (IdentityResolver.USER.equals(identity)) {
+            // The authenticated user is a regular user, can only delete own account
+            return auth.getMid() == mid;
         }
 
         // Default to false if the relationship check fails
         return false;
     }
-    private String getIdentity(Connection conn, long mid) throws SQLException {
-        String selectSQL = "SELECT identity_s FROM user_basic WHERE mid = ?";
-        try (PreparedStatement stmt = conn.prepareStatement(selectSQL)) {
-            stmt.setLong(1, mid);
 
-            ResultSet rs = stmt.executeQuery();
-            if (rs.next()) {
-                return rs.getString("identity_s");
+    private void deleteFromDanmu(Connection conn, long mid) throws SQLException {
+        // 该用户发过弹幕的视频，时间轴都要重新加载，时间段的弹幕数量也要减掉
+        String deleteSQL = "DELETE FROM danmu WHERE mid = ? RETURNING vid, time";
+        Set<Integer> vids = new HashSet<>();
+        List<Integer> deletedVids = new ArrayList<>();
+        List<Double> deletedTimes = new ArrayList<>();
+        try (PreparedStatement stmt = conn.prepareStatement(deleteSQL)) {
+            stmt.setLong(1, mid);
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    vids.add(rs.getInt(1));
+                    deletedVids.add(rs.getInt(1));
+                    deletedTimes.add(rs.getDouble(2));
+                }
             }
         }
-
-        // Return null if the identity is not found
-        return null;
-    }
-
-    private void deleteFromDanmu(Connection conn, long mid) throws SQLException {
-        deleteFromTable(conn, "danmu", "mid", mid);
+        connections.afterCommit(() -> {
+            vids.forEach(timelines::invalidate);
+            for (int i = 0; i < deletedVids.size(); i++) {
+                hotspots.removed(deletedVids.get(i), deletedTimes.get(i));
+            }
+        });
     }
 
     private void deleteFromDanmuLike(Connection conn, long mid) throws SQLException {
@@ -169,7 +188,27 @@ public class UserServiceImpl implements UserService {
     }
 
     private void deleteFromVideo(Connection conn, long mid) throws SQLException {
-        deleteFromTable(conn, "video", "owner_mid", mid);
+        String deleteSQL = "DELETE FROM video WHERE owner_mid = ? RETURNING bv, vid";
+        Set<Integer> vids = new HashSet<>();
+        Set<String> bvs = new HashSet<>();
+        try (PreparedStatement stmt = conn.prepareStatement(deleteSQL)) {
+            stmt.setLong(1, mid);
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    videoKeys.remove(rs.getString(1));
+                    bvs.add(rs.getString(1));
+                    vids.add(rs.getInt(2));
+                }
+            }
+        }
+        // 提交前查询的线程可能又把视频缓存回去了，提交后再清一次
+        connections.afterCommit(() -> {
+            bvs.forEach(videoKeys::remove);
+            vids.forEach(vid -> {
+                timelines.invalidate(vid);
+                hotspots.dropped(vid);
+            });
+        });
     }
 
     private void deleteFromVideoLike(Connection conn, long mid) throws SQLException {
@@ -186,6 +225,14 @@ public class UserServiceImpl implements UserService {
 
     // Add more methods as needed...
 
+    private void lockUser(Connection conn, long mid) throws SQLException {
+        String lockSQL = "SELECT 1 FROM user_basic WHERE mid = ? FOR UPDATE";
+        try (PreparedStatement stmt = conn.prepareStatement(lockSQL)) {
+            stmt.setLong(1, mid);
+            stmt.executeQuery().close();
+        }
+    }
+
     private void deleteUser(Connection conn, long mid) throws SQLException {
         String deleteSQL = "DELETE FROM user_basic WHERE mid = ?";
         try (PreparedStatement stmt = conn.prepareStatement(deleteSQL)) {
@@ -208,7 +255,7 @@ public class UserServiceImpl implements UserService {
 
     @Override
     public UserInfoResp getUserInfo(long mid) {
-        try (Connection conn = dataSource.getConnection()) {
+        try (Connection conn = connections.getReadConnection()) {
             UserInfoResp userInfoResp = new UserInfoResp();
             userInfoResp.setMid(mid);
 
@@ -263,14 +310,7 @@ public class UserServiceImpl implements UserService {
         return false;
     }
     private boolean isUserExists(Connection conn, long mid) throws SQLException {
-        // Check if user exists in user_basic table
-        String userExistsSql = "SELECT 1 FROM user_basic WHERE mid = ?";
-        try (PreparedStatement userExistsStmt = conn.prepareStatement(userExistsSql)) {
-            userExistsStmt.setLong(1, mid);
-            try (ResultSet userExistsRs = userExistsStmt.executeQuery()) {
-                return userExistsRs.next();
-            }
-        }
+        return identities.exists(conn, mid);
     }
 
     private int getUserCoin(Connection conn, long mid) throws SQLException {
@@ -297,19 +337,19 @@ public class UserServiceImpl implements UserService {
 
     private String[] getWatchedVideos(Connection conn, long mid) throws SQLException {
         // 查询 VideoViewerMids 表获取观看视频列表
-        String watchedSql = "SELECT distinct bv FROM viewer_duration WHERE viewer_mid = ?";
+        String watchedSql = "SELECT distinct v.bv FROM viewer_duration vd JOIN video v ON v.vid = vd.vid WHERE vd.viewer_mid = ?";
         return getStringArray(conn, watchedSql, mid);
     }
 
     private String[] getLikedVideos(Connection conn, long mid) throws SQLException {
         // 查询 VideoLike 表获取喜欢视频列表
-        String likedSql = "SELECT video_bv FROM video_like WHERE liked_by = ?";
+        String likedSql = "SELECT v.bv FROM video_like vl JOIN video v ON v.vid = vl.vid WHERE vl.liked_by = ?";
         return getStringArray(conn, likedSql, mid);
     }
 
     private String[] getCollectedVideos(Connection conn, long mid) throws SQLException {
         // 查询 VideoFavorite 表获取收藏视频列表
-        String collectedSql = "SELECT video_bv FROM video_favorite WHERE favorite_by = ?";
+        String collectedSql = "SELECT v.bv FROM video_favorite vf JOIN video v ON v.vid = vf.vid WHERE vf.favorite_by = ?";
         return getStringArray(conn, collectedSql, mid);
     }
 
@@ -367,26 +407,12 @@ public class UserServiceImpl implements UserService {
     // ... 其他方法
 
 
-    private boolean qqExists(Connection conn, String qq) {
-        String sql = "SELECT COUNT(*) FROM user_qq WHERE qq = ?";
-        return exists(conn, sql, qq);
-    }
-
-    private boolean wechatExists(Connection conn, String wechat) {
-        String sql = "SELECT COUNT(*) FROM user_wechat WHERE wechat = ?";
-        return exists(conn, sql, wechat);
+    private boolean qqExists(Connection conn, String qq) throws SQLException {
+        return identities.qqMid(conn, qq) > 0;
     }
 
-    private boolean exists(Connection conn, String sql, String value) {
-        try (PreparedStatement stmt = conn.prepareStatement(sql)) {
-            stmt.setString(1, value);
-            try (ResultSet rs = stmt.executeQuery()) {
-                return rs.next() && rs.getInt(1) > 0;
-            }
-        } catch (SQLException e) {
-            handleSQLException(e);
-            return false;
-        }
+    private boolean wechatExists(Connection conn, String wechat) throws SQLException {
+        return identities.wechatMid(conn, wechat) > 0;
     }
 
     private long insertUserBasic(Connection conn, RegisterUserReq req) throws SQLException {
@@ -465,22 +491,21 @@ public class UserServiceImpl implements UserService {
 
     @Override
     public boolean follow(AuthInfo auth, long followeeMid) {
-        // Check if authentication information is valid
-
+        try (Connection conn = connections.getConnection()) {
+            // Check if authentication information is valid
+            if (!isAuthValid(auth)) {
+                return false;
+            }
 
-        if (!isAuthValid(auth)) {
-            return false;
-        }
+            // Check if followeeMid is valid
+            if (!isExistInUserBasic(followeeMid)) {
+                return false;
+            }
+            auth.setMid(AuthMidFromQQorWeChat(auth));
+            if(auth.getMid()==followeeMid){
+                return false;
+            }
 
-        // Check if followeeMid is valid
-        if (!isExistInUserBasic(followeeMid)) {
-            return false;
-        }
-        auth.setMid(AuthMidFromQQorWeChat(auth));
-        if(auth.getMid()==followeeMid){
-            return false;
-        }
-        try (Connection conn = dataSource.getConnection()) {
             // Implement follow/unfollow logic here
             boolean isFollowing = isFollowing(conn, auth, followeeMid);
 
@@ -531,71 +556,23 @@ public class UserServiceImpl implements UserService {
     // ... Other methods from the original class
 
     private boolean isAuthValid(AuthInfo auth) {
-        // Check if authentication information is valid
-        if (AuthMidFromQQorWeChat(auth)==-1) {
-            return false; // Mid is invalid
-        }
-
-        if (isNotEmpty(auth.getQq()) && isNotEmpty(auth.getWechat())) {
-            // Check if both QQ and WeChat are non-empty
-            // and if they correspond to the same user
-            try (Connection conn = dataSource.getConnection()) {
-                long userByQq = getUserByQQ(conn, auth.getQq());
-                long userByWechat = getUserByWechat(conn, auth.getWechat());
-
-                if ( userByQq != userByWechat) {
-                    return false;
-                }
-            } catch (SQLException e) {
-                handleSQLException(e);
-                return false;
-            }
-        }
-
-        return true;
+        return AuthMidFromQQorWeChat(auth) != -1;
     }
 
     private long AuthMidFromQQorWeChat(AuthInfo auth) {
-        long authMid = auth.getMid();
-        if (isExistInUserBasic(authMid)) {
-            return authMid; // Auth has a valid and existing mid
-        }
-
-        try (Connection conn = dataSource.getConnection()) {
-            // If auth's mid does not exist, check by QQ
-            if (isNotEmpty(auth.getQq())) {
-                long qqMid = getUserByQQ(conn, auth.getQq());
-                if (qqMid > 0) {
-                    return qqMid; // User found by QQ
-                }
-            }
-
-            // If auth's mid and QQ do not exist, check by WeChat
-            if (isNotEmpty(auth.getWechat())) {
-                long wechatMid = getUserByWechat(conn, auth.getWechat());
-                if (wechatMid > 0) {
-                    return wechatMid; // User found by WeChat
-                }
-            }
+        try {
+            return identities.resolve(auth);
         } catch (SQLException e) {
             handleSQLException(e);
+            return -1;
         }
-
-        return -1; // Default return value
     }
 
 
 
     private boolean isExistInUserBasic(long mid) {
-        // Check if user ID is valid by querying the user table
-        try (Connection conn = dataSource.getConnection()) {
-            String userExistsSql = "SELECT 1 FROM user_basic WHERE mid = ?";
-            try (PreparedStatement userExistsStmt = conn.prepareStatement(userExistsSql)) {
-                userExistsStmt.setLong(1, mid);
-                try (ResultSet userExistsRs = userExistsStmt.executeQuery()) {
-                    return userExistsRs.next();
-                }
-            }
+        try {
+            return identities.exists(mid);
         } catch (SQLException e) {
             handleSQLException(e);
             return false;
@@ -603,30 +580,6 @@ public class UserServiceImpl implements UserService {
     }
 
 
-    private boolean isNotEmpty(String value) {
-        // Check if a string is not empty
-        return value != null && !value.isEmpty();
-    }
-    private long getUserByQQ(Connection conn, String qq) throws SQLException {
-        String sql = "SELECT mid FROM user_qq WHERE qq = ?";
-        try (PreparedStatement stmt = conn.prepareStatement(sql)) {
-            stmt.setString(1, qq);
-            try (ResultSet rs = stmt.executeQuery()) {
-                return rs.next() ? rs.getLong("mid") : -1;
-            }
-        }
-    }
-
-    private long getUserByWechat(Connection conn, String wechat) throws SQLException {
-        String sql = "SELECT mid FROM user_wechat WHERE wechat = ?";
-        try (PreparedStatement stmt = conn.prepareStatement(sql)) {
-            stmt.setString(1, wechat);
-            try (ResultSet rs = stmt.executeQuery()) {
-                return rs.next() ? rs.getLong("mid") : -1;
-            }
-        }
-    }
-
 // ... Other methods from the original class
 
 }
\ No newline at end of file
@@ -0,0 +1,98 @@
+package io.sustc.service.impl;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Translates the public bv of a video into the integer {@code vid} that the relation tables
+ * (video_like, video_coin, video_favorite, viewer_duration, danmu, danmu_like) are keyed on.
+ * Only existing videos are cached, so a miss always goes to the database and a {@code null}
+ * result doubles as the "video does not exist" check. Videos read from the replica are not
+ * cached.
+ */
+@Component
+public class VideoKeys {
+
+    @Autowired
+    private ExistenceFilter existence;
+
+    @Autowired
+    private ConnectionScope connections;
+
+    private final Map<String, Integer> vids = new ConcurrentHashMap<>();
+
+    // Bumped by every invalidation, a lookup that raced with one does not cache its result
+    private final AtomicLong generation = new AtomicLong();
+
+    /**
+     * @return the vid of {@code bv}, or {@code null} when there is no such video
+     */
+    Integer vid(Connection conn, String bv) throws SQLException {
+        if (bv == null || bv.isEmpty()) {
+            return null;
+        }
+        Integer vid = vids.get(bv);
+        if (vid != null) {
+            return vid;
+        }
+        if (!existence.mayHaveVideo(bv)) {
+            return null;
+        }
+
+        long seen = generation.get();
+        String sql = "SELECT vid FROM video WHERE bv = ?";
+        try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+            stmt.setString(1, bv);
+            try (ResultSet rs = stmt.executeQuery()) {
+                if (!rs.next()) {
+                    return null;
+                }
+                vid = rs.getInt(1);
+            }
+        }
+        // a lagging replica may still have a deleted video
+        if (connections.isOnReplica()) {
+            return vid;
+        }
+        vids.put(bv, vid);
+        // an invalidation ran while we were querying, the video may already be gone
+        if (generation.get() != seen) {
+            vids.remove(bv, vid);
+        }
+        return vid;
+    }
+
+    /**
+     * @return the vid of {@code bv} if it is cached, {@code null} otherwise. Never queries.
+     */
+    Integer cached(String bv) {
+        return bv == null ? null : vids.get(bv);
+    }
+
+    void put(String bv, int vid) {
+        generation.incrementAndGet();
+        existence.addVideo(bv);
+        vids.put(bv, vid);
+    }
+
+    void remove(String bv) {
+        generation.incrementAndGet();
+        vids.remove(bv);
+    }
+
+    /**
+     * Forgets every mapping, used when the video table is reloaded or emptied.
+     */
+    void clear() {
+        generation.incrementAndGet();
+        vids.clear();
+    }
+}
@@ -9,7 +9,6 @@ import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
-import javax.sql.DataSource;
 import java.sql.*;
 import java.time.LocalDateTime;
 import java.util.HashSet;
@@ -26,32 +25,47 @@ public class VideoServiceImpl implements VideoService {
     private static final Set<String> generatedBVSet = new HashSet<>();
 
     @Autowired
-    private DataSource dataSource;
+    private ConnectionScope connections;
+
+    @Autowired
+    private VideoKeys videoKeys;
+
+    @Autowired
+    private IdentityResolver identities;
+
+    @Autowired
+    private DanmuTimelineIndex timelines;
+
+    @Autowired
+    private DanmuWriteBuffer writes;
+
+    @Autowired
+    private HotspotHistogram hotspots;
 
     @Override
     public String postVideo(AuthInfo auth, PostVideoReq req) throws SQLException {
         // Check if the authentication is valid
-        try (Connection conn = dataSource.getConnection()) {
+        try (Connection conn = connections.getConnection()) {
             if (!isAuthValid(auth, conn)) {
                 return null; // Invalid authentication
             }
             auth.setMid(AuthMidFromQQorWeChat(auth, conn));
+            // Check if the request is valid
+            if (req == null || req.getTitle() == null || req.getTitle().isEmpty() ||
+                    req.getDuration() < 10 || req.getPublicTime()==null ) {
+                return null; // Invalid request
+            }
+            if (req.getPublicTime().before(Timestamp.valueOf(LocalDateTime.now())))
+                return null;
+            // Check if there is another video with the same title and same user
+            if (isDuplicateVideo(auth.getMid(), req.getTitle())) {
+                return null; // Duplicate video
+            }
+            req.setDuration((long)req.getDuration());
+
+            // Insert the video into the database
+            return insertVideo(req,auth);
         }
-        // Check if the request is valid
-        if (req == null || req.getTitle() == null || req.getTitle().isEmpty() ||
-                req.getDuration() < 10 || req.getPublicTime()==null ) {
-            return null; // Invalid request
-        }
-        if (req.getPublicTime().before(Timestamp.valueOf(LocalDateTime.now())))
-            return null;
-// Check if there is another video with the same title and same user
-        if (isDuplicateVideo(auth.getMid(), req.getTitle())) {
-            return null; // Duplicate video
-        }
-         req.setDuration((long)req.getDuration());
-        
-        // Insert the video into the database
-        return insertVideo(req,auth);
     }
 
 
@@ -59,7 +73,7 @@ public class VideoServiceImpl implements VideoService {
     private boolean isDuplicateVideo(long ownerMid, String title) {
         String sql = "SELECT COUNT(*) FROM video WHERE owner_mid = ? AND title = ?";
 
-        try (Connection conn = dataSource.getConnection();
+        try (Connection conn = connections.getConnection();
              PreparedStatement stmt = conn.prepareStatement(sql)) {
 
             stmt.setLong(1, ownerMid);
@@ -76,9 +90,9 @@ public class VideoServiceImpl implements VideoService {
 
     private String insertVideo(PostVideoReq req,AuthInfo auth) {
         String sql = "INSERT INTO Video (bv, title, owner_mid, owner_name, commit_time, review_time, public_time, duration, description) " +
-                "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?)";
+                "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?) RETURNING vid";
 
-        try (Connection conn = dataSource.getConnection();
+        try (Connection conn = connections.getConnection();
              PreparedStatement stmt = conn.prepareStatement(sql)) {
 
             // Generate bv (you may use your logic to generate bv)
@@ -94,8 +108,11 @@ public class VideoServiceImpl implements VideoService {
             stmt.setFloat(8, req.getDuration());
             stmt.setString(9, req.getDescription());
 
-
-            stmt.executeUpdate();
+            try (ResultSet rs = stmt.executeQuery()) {
+                rs.next();
+                int vid = rs.getInt(1);
+                connections.afterCommit(() -> videoKeys.put(bv, vid));
+            }
 
             return bv;
         } catch (SQLException e) {
@@ -106,7 +123,7 @@ public class VideoServiceImpl implements VideoService {
     public String getPeopleName(long mid) {
         String sql = "SELECT name FROM user_basic WHERE mid = ?";
 
-        try (Connection conn = dataSource.getConnection();
+        try (Connection conn = connections.getConnection();
              PreparedStatement stmt = conn.prepareStatement(sql)) {
 
             stmt.setLong(1, mid);
@@ -158,7 +175,7 @@ public class VideoServiceImpl implements VideoService {
     public boolean deleteVideo(AuthInfo auth, String bv) {
 
         // Delete the video and associated records
-        try (Connection conn = dataSource.getConnection()) {
+        try (Connection conn = connections.getConnection()) {
             // Check if auth is valid
             if ( !isAuthValid(auth,conn)) {
                 return false;
@@ -171,15 +188,27 @@ public class VideoServiceImpl implements VideoService {
             }
 
             // Check if the video exists
-            if (!videoExists(conn, bv)) {
+            Integer vid = videoKeys.vid(conn, bv);
+            if (vid == null) {
                 return false;
             }
 
+            // 排队中的弹幕先写进去，和视频的其他弹幕一起删掉
+            // 之后排队的弹幕写入时要等下面 DELETE 的行锁，提交之后就被跳过了
+            writes.flush();
+
             // Delete records from Video table
             deleteVideoRecord(conn, bv);
+            videoKeys.remove(bv);
 
             // Delete records from associated tables (likes, favorites, etc.)
-            deleteAssociatedRecords(conn, bv);
+            deleteAssociatedRecords(conn, vid);
+            // 提交前查询的线程可能又把视频缓存回去了，提交后再清一次
+            connections.afterCommit(() -> {
+                videoKeys.remove(bv);
+                timelines.invalidate(vid);
+                hotspots.dropped(vid);
+            });
 
             return true;
         } catch (SQLException e) {
@@ -191,7 +220,7 @@ public class VideoServiceImpl implements VideoService {
         // Check if the user is the owner or a superuser
         String sql = "SELECT 1 FROM video WHERE bv = ? AND (owner_mid = ? OR ?)";
 
-        try (Connection conn = dataSource.getConnection();
+        try (Connection conn = connections.getConnection();
              PreparedStatement stmt = conn.prepareStatement(sql)) {
 
             stmt.setString(1, bv);
@@ -206,17 +235,8 @@ public class VideoServiceImpl implements VideoService {
     }
 
     private boolean isSuperuser(long mid) {
-        String sql = "SELECT COUNT(*) FROM user_basic WHERE mid = ? AND identity_s = 'SUPERUSER'";
-
-        try (Connection conn = dataSource.getConnection();
-             PreparedStatement stmt = conn.prepareStatement(sql)) {
-            stmt.setLong(1, mid);
-
-            ResultSet rs = stmt.executeQuery();
-            rs.next();
-
-            // If the count is greater than 0, the user has SUPERUSER identity
-            return rs.getInt(1) > 0;
+        try {
+            return identities.isSuperuser(mid);
         } catch (SQLException e) {
             throw new RuntimeException("Error checking SUPERUSER identity", e);
         }
@@ -224,14 +244,7 @@ public class VideoServiceImpl implements VideoService {
 
 
     private boolean videoExists(Connection conn, String bv) throws SQLException {
-        String sql = "SELECT 1 FROM video WHERE bv = ?";
-
-        try (PreparedStatement stmt = conn.prepareStatement(sql)) {
-            stmt.setString(1, bv);
-
-            ResultSet rs = stmt.executeQuery();
-            return rs.next();
-        }
+        return videoKeys.vid(conn, bv) != null;
     }
 
     private void deleteVideoRecord(Connection conn, String bv) throws SQLException {
@@ -243,80 +256,80 @@ public class VideoServiceImpl implements VideoService {
         }
     }
 
-    private void deleteAssociatedRecords(Connection conn, String bv) throws SQLException {
+    private void deleteAssociatedRecords(Connection conn, int vid) throws SQLException {
         // Delete records from VideoLike table
-        deleteFromVideoLike(conn, bv);
+        deleteFromVideoLike(conn, vid);
 
         // Delete records from VideoFavorite table
-        deleteFromVideoFavorite(conn, bv);
+        deleteFromVideoFavorite(conn, vid);
 
         // Delete records from VideoCoin table
-        deleteFromVideoCoin(conn, bv);
+        deleteFromVideoCoin(conn, vid);
 
         // Delete records from viewer_duration table
-        deleteFromViewerDuration(conn, bv);
+        deleteFromViewerDuration(conn, vid);
 
         // Delete records from DanmuLike table
-        deleteFromDanmuLike(conn, bv);
+        deleteFromDanmuLike(conn, vid);
 
         // Delete records from Danmu table
-        deleteFromDanmu(conn, bv);
+        deleteFromDanmu(conn, vid);
 
         // Add more delete statements for other associated tables if needed
     }
 
-    private void deleteFromVideoLike(Connection conn, String bv) throws SQLException {
-        String sql = "DELETE FROM video_like WHERE video_bv = ?";
+    private void deleteFromVideoLike(Connection conn, int vid) throws SQLException {
+        String sql = "DELETE FROM video_like WHERE vid = ?";
 
         try (PreparedStatement stmt = conn.prepareStatement(sql)) {
-            stmt.setString(1, bv);
+            stmt.setInt(1, vid);
             stmt.executeUpdate();
         }
     }
 
-    private void deleteFromVideoFavorite(Connection conn, String bv) throws SQLException {
-        String sql = "DELETE FROM video_favorite WHERE video_bv = ?";
+    private void deleteFromVideoFavorite(Connection conn, int vid) throws SQLException {
+        String sql = "DELETE FROM video_favorite WHERE vid = ?";
 
         try (PreparedStatement stmt = conn.prepareStatement(sql)) {
-            stmt.setString(1, bv);
+            stmt.setInt(1, vid);
             stmt.executeUpdate();
         }
 
         // Add more methods for other associated tables if needed
     }
 
-    private void deleteFromVideoCoin(Connection conn, String bv) throws SQLException {
-        String sql = "DELETE FROM video_coin WHERE video_bv = ?";
+    private void deleteFromVideoCoin(Connection conn, int vid) throws SQLException {
+        String sql = "DELETE FROM video_coin WHERE vid = ?";
 
         try (PreparedStatement stmt = conn.prepareStatement(sql)) {
-            stmt.setString(1, bv);
+            stmt.setInt(1, vid);
             stmt.executeUpdate();
         }
     }
 
-    private void deleteFromViewerDuration(Connection conn, String bv) throws SQLException {
-        String sql = "DELETE FROM viewer_duration WHERE bv = ?";
+    private void deleteFromViewerDuration(Connection conn, int vid) throws SQLException {
+        String sql = "DELETE FROM viewer_duration WHERE vid = ?";
 
         try (PreparedStatement stmt = conn.prepareStatement(sql)) {
-            stmt.setString(1, bv);
+            stmt.setInt(1, vid);
             stmt.executeUpdate();
         }
     }
 
-    private void deleteFromDanmuLike(Connection conn, String bv) throws SQLException {
-        String sql = "DELETE FROM danmu_like WHERE bv = ?";
+    private void deleteFromDanmuLike(Connection conn, int vid) throws SQLException {
+        String sql = "DELETE FROM danmu_like WHERE vid = ?";
 
         try (PreparedStatement stmt = conn.prepareStatement(sql)) {
-            stmt.setString(1, bv);
+            stmt.setInt(1, vid);
             stmt.executeUpdate();
         }
     }
 
-    private void deleteFromDanmu(Connection conn, String bv) throws SQLException {
-        String sql = "DELETE FROM danmu WHERE bv = ?";
+    private void deleteFromDanmu(Connection conn, int vid) throws SQLException {
+        String sql = "DELETE FROM danmu WHERE vid = ?";
 
         try (PreparedStatement stmt = conn.prepareStatement(sql)) {
-            stmt.setString(1, bv);
+            stmt.setInt(1, vid);
             stmt.executeUpdate();
         }
     }
@@ -326,7 +339,7 @@ public class VideoServiceImpl implements VideoService {
     @Override
     public boolean updateVideoInfo(AuthInfo auth, String bv, PostVideoReq req) {
         
-        try (Connection conn = dataSource.getConnection()) {
+        try (Connection conn = connections.getConnection()) {
             if ( !isAuthValid(auth,conn)) {
                 return false;
             }
@@ -366,6 +379,9 @@ public class VideoServiceImpl implements VideoService {
 
                 int rowsAffected = updateVideoStmt.executeUpdate();
                 if (rowsAffected > 0) {
+                    // public_time 变了，缓存的时间轴里的发布状态也要重新加载
+                    Integer vid = videoKeys.vid(conn, bv);
+                    connections.afterCommit(() -> timelines.invalidate(vid));
                     return true; // Video info updated successfully
                 }
             }
@@ -377,7 +393,7 @@ public class VideoServiceImpl implements VideoService {
 
     @Override
     public synchronized List<String> searchVideo(AuthInfo auth, String keywords, int pageSize, int pageNum) {
-        try (Connection conn = dataSource.getConnection()) {
+        try (Connection conn = connections.getReadConnection()) {
             if (!isAuthValid(auth, conn)) {
                 return null;
             }
@@ -548,7 +564,7 @@ public class VideoServiceImpl implements VideoService {
         return currentDuration;
     }
     private boolean isVideoOwner(AuthInfo auth, String bv) {
-        try (Connection conn = dataSource.getConnection()) {
+        try (Connection conn = connections.getConnection()) {
             String checkOwnerSql = "SELECT 1 FROM video WHERE bv = ? AND owner_mid = ?";
             try (PreparedStatement checkOwnerStmt = conn.prepareStatement(checkOwnerSql)) {
                 checkOwnerStmt.setString(1, bv);
@@ -573,16 +589,17 @@ public class VideoServiceImpl implements VideoService {
 
     @Override
     public double getAverageViewRate(String bv) {
-        try (Connection conn = dataSource.getConnection()) {
-            if (!videoExists(conn, bv) || noPeopleWatched(conn, bv)) {
+        try (Connection conn = connections.getReadConnection()) {
+            Integer vid = videoKeys.vid(conn, bv);
+            if (vid == null || noPeopleWatched(conn, bv)) {
                 return -1; // 视频不存在或者没有人观看，返回 -1
             }
             String avgViewRateQuery = "SELECT AVG(CAST(vd.view_time AS DOUBLE PRECISION) / v.duration) AS avgViewRate " +
                     "FROM viewer_duration vd " +
-                    "JOIN video v ON vd.bv = v.bv " +
-                    "WHERE v.bv = ?";
+                    "JOIN video v ON vd.vid = v.vid " +
+                    "WHERE v.vid = ?";
             try (PreparedStatement stmt = conn.prepareStatement(avgViewRateQuery)) {
-                stmt.setString(1, bv);
+                stmt.setInt(1, vid);
                 ResultSet rs = stmt.executeQuery();
                 if (rs.next()) {
                     return rs.getDouble("avgViewRate"); // 返回平均观看率
@@ -610,78 +627,29 @@ public class VideoServiceImpl implements VideoService {
 
     @Override
     public Set<Integer> getHotspot(String bv) {
-        Set<Integer> hotspotIndices = new HashSet<>();
-        try (Connection conn = dataSource.getConnection()) {
-            if (!videoExists(conn, bv) || noDanmu(conn, bv)) {
-                return hotspotIndices; // 视频不存在或者没有弹幕，返回空集合
-            }
-
-            // 查询视频的所有弹幕数据
-            String query = "SELECT time FROM danmu WHERE bv = ? ORDER BY time";
-            try (PreparedStatement stmt = conn.prepareStatement(query)) {
-                stmt.setString(1, bv);
-                ResultSet rs = stmt.executeQuery();
-                List<Float> danmuTimes = new ArrayList<>();
-                while (rs.next()) {
-                    float time = rs.getFloat("time");
-                    danmuTimes.add(time);
-                }
-                // 计算每个时间段的弹幕数量
-                int interval = 10; // 时间段间隔（秒）
-                int n = danmuTimes.size();
-                int start = 0;
-                int end = 0;
-                int maxCount = 0;
-                List<Integer> maxIndices = new ArrayList<>();
-                while (start< n) {
-                    float startTime = danmuTimes.get(start);
-                    int index = (int) (startTime/10);
-                    float endTime = (index+1)*10;
-                    while (end < n-1 && danmuTimes.get(end+1) < endTime) {
-                        end++;
-                    }
-                    int count = end - start + 1;
-                    if (count > maxCount) {
-                        maxCount = count;
-                        maxIndices.clear();
-                        maxIndices.add(index);
-                    } else if (count == maxCount) {
-                        maxIndices.add(index);
-                    }
-                    start = end + 1;
-                }
-
-                // 将拥有最多弹幕的时间段索引添加到结果集中
-                hotspotIndices.addAll(maxIndices);
-            }
-        } catch (SQLException e) {
-            e.printStackTrace();
-        }
-        return hotspotIndices; // 返回拥有最多弹幕的时间段索引集合
-    }
-
-    private boolean noDanmu(Connection conn, String bv) {
         try {
-            String query = "SELECT COUNT(*) AS count FROM danmu WHERE bv = ?";
-            try (PreparedStatement stmt = conn.prepareStatement(query)) {
-                stmt.setString(1, bv);
-                ResultSet rs = stmt.executeQuery();
-                if (rs.next()) {
-                    int count = rs.getInt("count");
-                    return count == 0;
+            Integer vid = videoKeys.cached(bv);
+            if (vid == null) {
+                try (Connection conn = connections.getReadConnection()) {
+                    vid = videoKeys.vid(conn, bv);
                 }
             }
+            if (vid == null) {
+                return new HashSet<>(); // 视频不存在，返回空集合
+            }
+            // 每个 10 秒时间段的弹幕数量是维护好的，直接取数量最多的时间段
+            return hotspots.hotspots(vid);
         } catch (SQLException e) {
             e.printStackTrace();
+            return new HashSet<>();
         }
-        return true; // 出现错误或其他情况，返回 true
     }
 
 
 
     @Override
     public boolean reviewVideo(AuthInfo auth, String bv) {
-        try (Connection conn = dataSource.getConnection()) {
+        try (Connection conn = connections.getConnection()) {
             if (!isAuthValid(auth,conn)) {
                 return false;
             }
@@ -720,7 +688,7 @@ public class VideoServiceImpl implements VideoService {
             return false; // Invalid input, return false
         }
 
-        try (Connection conn = dataSource.getConnection()) {
+        try (Connection conn = connections.getConnection()) {
             String checkReviewedSql = "SELECT 1 FROM video WHERE bv = ? AND reviewer <> 0";
             try (PreparedStatement checkReviewedStmt = conn.prepareStatement(checkReviewedSql)) {
                 checkReviewedStmt.setString(1, bv);
@@ -737,13 +705,14 @@ public class VideoServiceImpl implements VideoService {
 
     @Override
     public boolean coinVideo(AuthInfo auth, String bv) {
-        try (Connection conn = dataSource.getConnection()) {
+        try (Connection conn = connections.getConnection()) {
             if (!isAuthValid(auth, conn)) {
                 return false; // 用户认证无效，返回 false
             }
             auth.setMid(AuthMidFromQQorWeChat(auth,conn));
             long userId = auth.getMid(); // 获取用户的 mid
-            if (!videoExists(conn, bv)) {
+            Integer vid = videoKeys.vid(conn, bv);
+            if (vid == null) {
                 return false;
             }
             // 检查用户是否可以搜索该视频且不是视频的所有者
@@ -752,7 +721,7 @@ public class VideoServiceImpl implements VideoService {
             }
 
             // 检查用户是否已经捐赠过硬币给该视频
-            if (hasUserDonatedCoin(conn, userId, bv)) {
+            if (hasUserDonatedCoin(conn, userId, vid)) {
                 return false; // 用户已经捐赠过硬币给该视频，返回 false
             }
 
@@ -763,7 +732,7 @@ public class VideoServiceImpl implements VideoService {
 
 
             // 添加一行表示用户对视频的硬币捐赠，并减少用户的硬币数量
-            if (donateCoinToVideo(conn, userId, bv)) {
+            if (donateCoinToVideo(conn, userId, vid)) {
                 return true; // 硬币捐赠成功，返回 true
             }
 
@@ -813,12 +782,12 @@ public class VideoServiceImpl implements VideoService {
         }
         return true; // 其它情况都返回 true
     }
-    private boolean donateCoinToVideo(Connection conn, long userId, String bv) {
+    private boolean donateCoinToVideo(Connection conn, long userId, int vid) {
         try {
             // 插入投币记录
-            String insertQuery = "INSERT INTO video_coin (video_bv, coin_by) VALUES (?, ?)";
+            String insertQuery = "INSERT INTO video_coin (vid, coin_by) VALUES (?, ?)";
             try (PreparedStatement insertStmt = conn.prepareStatement(insertQuery)) {
-                insertStmt.setString(1, bv);
+                insertStmt.setInt(1, vid);
                 insertStmt.setLong(2, userId);
                 int rowsInserted = insertStmt.executeUpdate();
 
@@ -839,11 +808,11 @@ public class VideoServiceImpl implements VideoService {
         return false; // 出现异常或未成功插入投币记录，返回 false
     }
 
-    private boolean hasUserDonatedCoin(Connection conn, long userId, String bv) {
+    private boolean hasUserDonatedCoin(Connection conn, long userId, int vid) {
         try {
-            String query = "SELECT COUNT(*) AS donation_count FROM video_coin WHERE video_bv = ? AND coin_by = ?";
+            String query = "SELECT COUNT(*) AS donation_count FROM video_coin WHERE vid = ? AND coin_by = ?";
             try (PreparedStatement stmt = conn.prepareStatement(query)) {
-                stmt.setString(1, bv);
+                stmt.setInt(1, vid);
                 stmt.setLong(2, userId);
                 ResultSet rs = stmt.executeQuery();
                 if (rs.next()) {
@@ -862,12 +831,13 @@ public class VideoServiceImpl implements VideoService {
 
     @Override
     public boolean likeVideo(AuthInfo auth, String bv) {
-        try (Connection conn = dataSource.getConnection()) {
+        try (Connection conn = connections.getConnection()) {
             if (!isAuthValid(auth, conn)) {
                 return false; // 用户认证无效，返回 false
             }
             auth.setMid(AuthMidFromQQorWeChat(auth,conn));
-            if (!videoExists(conn, bv)) {
+            Integer vid = videoKeys.vid(conn, bv);
+            if (vid == null) {
                 return false;
             }
             if (!canUserSearchVideo(auth, bv, conn) || isVideoOwner(auth, bv)) {
@@ -875,11 +845,11 @@ public class VideoServiceImpl implements VideoService {
             }
 
             // Toggle like status
-            if (isUserLikedVideo(conn, auth.getMid(), bv)) {
-                cancelLikeVideo(conn,auth.getMid(),bv);
+            if (isUserLikedVideo(conn, auth.getMid(), vid)) {
+                cancelLikeVideo(conn,auth.getMid(),vid);
                 return false;
             } else {
-                likeVideo(conn,auth.getMid(),bv);
+                likeVideo(conn,auth.getMid(),vid);
                 return true;
             }
             
@@ -889,12 +859,12 @@ public class VideoServiceImpl implements VideoService {
         return false; // Error occurred, return false
     }
 
-    private void likeVideo(Connection conn, long mid, String bv) {
+    private void likeVideo(Connection conn, long mid, int vid) {
         try {
             // 插入点赞记录
-            String insertQuery = "INSERT INTO video_like (video_bv, liked_by) VALUES (?, ?)";
+            String insertQuery = "INSERT INTO video_like (vid, liked_by) VALUES (?, ?)";
             try (PreparedStatement insertStmt = conn.prepareStatement(insertQuery)) {
-                insertStmt.setString(1, bv);
+                insertStmt.setInt(1, vid);
                 insertStmt.setLong(2, mid);
                 insertStmt.executeUpdate();
             }
@@ -903,12 +873,12 @@ public class VideoServiceImpl implements VideoService {
         }
     }
 
-    private void cancelLikeVideo(Connection conn, long mid, String bv) {
+    private void cancelLikeVideo(Connection conn, long mid, int vid) {
         try {
             // 删除点赞记录
-            String deleteQuery = "DELETE FROM video_like WHERE video_bv = ? AND liked_by = ?";
+            String deleteQuery = "DELETE FROM video_like WHERE vid = ? AND liked_by = ?";
             try (PreparedStatement deleteStmt = conn.prepareStatement(deleteQuery)) {
-                deleteStmt.setString(1, bv);
+                deleteStmt.setInt(1, vid);
                 deleteStmt.setLong(2, mid);
                 deleteStmt.executeUpdate();
             }
@@ -918,11 +888,11 @@ public class VideoServiceImpl implements VideoService {
     }
 
 
-    private boolean isUserLikedVideo(Connection conn, long mid, String bv) {
-        String checkLikeSql = "SELECT 1 FROM video_like WHERE liked_by = ? AND video_bv = ?";
+    private boolean isUserLikedVideo(Connection conn, long mid, int vid) {
+        String checkLikeSql = "SELECT 1 FROM video_like WHERE liked_by = ? AND vid = ?";
         try (PreparedStatement checkLikeStmt = conn.prepareStatement(checkLikeSql)) {
             checkLikeStmt.setLong(1, mid);
-            checkLikeStmt.setString(2, bv);
+            checkLikeStmt.setInt(2, vid);
             ResultSet resultSet = checkLikeStmt.executeQuery();
 
             return resultSet.next();
@@ -935,12 +905,13 @@ public class VideoServiceImpl implements VideoService {
 
     @Override
     public boolean collectVideo(AuthInfo auth, String bv) {
-        try (Connection conn = dataSource.getConnection()) {
+        try (Connection conn = connections.getConnection()) {
             if (!isAuthValid(auth, conn)) {
                 return false; // 用户认证无效，返回 false
             }
             auth.setMid(AuthMidFromQQorWeChat(auth,conn));
-            if (!videoExists(conn, bv)) {
+            Integer vid = videoKeys.vid(conn, bv);
+            if (vid == null) {
                 return false;
             }
             if (!canUserSearchVideo(auth, bv, conn) || isVideoOwner(auth, bv)) {
@@ -948,11 +919,11 @@ public class VideoServiceImpl implements VideoService {
             }
 
             // Toggle collect status
-            if (isUserCollectVideo(conn, auth.getMid(), bv)) {
-                cancelCollectVideo(conn,auth.getMid(),bv);
+            if (isUserCollectVideo(conn, auth.getMid(), vid)) {
+                cancelCollectVideo(conn,auth.getMid(),vid);
                 return false;
             } else {
-                insertCollectVideo(conn,auth.getMid(),bv);
+                insertCollectVideo(conn,auth.getMid(),vid);
                 return true;
             }
         } catch (SQLException e) {
@@ -961,12 +932,12 @@ public class VideoServiceImpl implements VideoService {
         return false; // Error occurred, return false
     }
 
-    private void insertCollectVideo(Connection conn, long mid, String bv) {
+    private void insertCollectVideo(Connection conn, long mid, int vid) {
         try {
             // 插入收藏视频记录
-            String insertQuery = "INSERT INTO video_favorite (video_bv, favorite_by) VALUES (?, ?)";
+            String insertQuery = "INSERT INTO video_favorite (vid, favorite_by) VALUES (?, ?)";
             try (PreparedStatement insertStmt = conn.prepareStatement(insertQuery)) {
-                insertStmt.setString(1, bv);
+                insertStmt.setInt(1, vid);
                 insertStmt.setLong(2, mid);
                 insertStmt.executeUpdate();
             }
@@ -975,12 +946,12 @@ public class VideoServiceImpl implements VideoService {
         }
     }
 
-    private void cancelCollectVideo(Connection conn, long mid, String bv) {
+    private void cancelCollectVideo(Connection conn, long mid, int vid) {
         try {
             // 取消收藏视频记录
-            String deleteQuery = "DELETE FROM video_favorite WHERE video_bv = ? AND favorite_by = ?";
+            String deleteQuery = "DELETE FROM video_favorite WHERE vid = ? AND favorite_by = ?";
             try (PreparedStatement deleteStmt = conn.prepareStatement(deleteQuery)) {
-                deleteStmt.setString(1, bv);
+                deleteStmt.setInt(1, vid);
                 deleteStmt.setLong(2, mid);
                 deleteStmt.executeUpdate();
             }
@@ -989,12 +960,12 @@ public class VideoServiceImpl implements VideoService {
         }
     }
 
-    private boolean isUserCollectVideo(Connection conn, long mid, String bv) {
+    private boolean isUserCollectVideo(Connection conn, long mid, int vid) {
         try {
             // 检查用户是否已经收藏了该视频
-            String query = "SELECT COUNT(*) FROM video_favorite WHERE video_bv = ? AND favorite_by = ?";
+            String query = "SELECT COUNT(*) FROM video_favorite WHERE vid = ? AND favorite_by = ?";
             try (PreparedStatement stmt = conn.prepareStatement(query)) {
-                stmt.setString(1, bv);
+                stmt.setInt(1, vid);
                 stmt.setLong(2, mid);
                 try (ResultSet rs = stmt.executeQuery()) {
                     if (rs.next()) {
@@ -1019,97 +990,16 @@ public class VideoServiceImpl implements VideoService {
     }
 
     private boolean isAuthValid(AuthInfo auth,Connection conn) {
-        // Check if authentication information is valid
-        if (AuthMidFromQQorWeChat(auth,conn)==-1) {
-            return false; // Mid is invalid
-        }
-
-        if (isNotEmpty(auth.getQq()) && isNotEmpty(auth.getWechat())) {
-            // Check if both QQ and WeChat are non-empty
-            // and if they correspond to the same user
-            try  {
-                long userByQq = getUserByQQ(conn, auth.getQq());
-                long userByWechat = getUserByWechat(conn, auth.getWechat());
-
-                if ( userByQq != userByWechat) {
-                    return false;
-                }
-            } catch (SQLException e) {
-                handleSQLException(e);
-                return false;
-            }
-        }
-
-        return true;
+        return AuthMidFromQQorWeChat(auth,conn) != -1;
     }
 
     private long AuthMidFromQQorWeChat(AuthInfo auth,Connection conn) {
-        long authMid = auth.getMid();
-        if (isExistInUserBasic(authMid,conn)) {
-            return authMid; // Auth has a valid and existing mid
-        }
-
-        try  {
-            // If auth's mid does not exist, check by QQ
-            if (isNotEmpty(auth.getQq())) {
-                long qqMid = getUserByQQ(conn, auth.getQq());
-                if (qqMid > 0) {
-                    return qqMid; // User found by QQ
-                }
-            }
-
-            // If auth's mid and QQ do not exist, check by WeChat
-            if (isNotEmpty(auth.getWechat())) {
-                long wechatMid = getUserByWechat(conn, auth.getWechat());
-                if (wechatMid > 0) {
-                    return wechatMid; // User found by WeChat
-                }
-            }
-        } catch (SQLException e) {
-            handleSQLException(e);
-        }
-
-        return -1; // Default return value
-    }
-
-    private boolean isExistInUserBasic(long mid,Connection conn) {
-        // Check if user ID is valid by querying the user table
         try {
-            String userExistsSql = "SELECT 1 FROM User_basic WHERE mid = ?";
-            try (PreparedStatement userExistsStmt = conn.prepareStatement(userExistsSql)) {
-                userExistsStmt.setLong(1, mid);
-                try (ResultSet userExistsRs = userExistsStmt.executeQuery()) {
-                    return userExistsRs.next();
-                }
-            }
+            return identities.resolve(conn, auth);
         } catch (SQLException e) {
             handleSQLException(e);
-            return false;
-        }
-    }
-
-    private boolean isNotEmpty(String value) {
-        // Check if a string is not empty
-        return value != null && !value.isEmpty();
-    }
-
-    private long getUserByQQ(Connection conn, String qq) throws SQLException {
-        String sql = "SELECT mid FROM user_qq WHERE qq = ?";
-        try (PreparedStatement stmt = conn.prepareStatement(sql)) {
-            stmt.setString(1, qq);
-            try (ResultSet rs = stmt.executeQuery()) {
-                return rs.next() ? rs.getLong("mid") : -1;
-            }
+            return -1;
         }
     }
 
-    private long getUserByWechat(Connection conn, String wechat) throws SQLException {
-        String sql = "SELECT mid FROM user_wechat WHERE wechat = ?";
-        try (PreparedStatement stmt = conn.prepareStatement(sql)) {
-            stmt.setString(1, wechat);
-            try (ResultSet rs = stmt.executeQuery()) {
-                return rs.next() ? rs.getLong("mid") : -1;
-            }
-        }
-    }
 }